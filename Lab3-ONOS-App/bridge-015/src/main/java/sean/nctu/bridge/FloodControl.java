@@ -0,0 +1,218 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyService;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loop-free flooding for packets with an unknown destination.
+ * <p>
+ * Packets are flooded only out of edge ports and the infrastructure ports on
+ * the topology's broadcast tree, and packets arriving on an infrastructure
+ * port off the tree are dropped as looped copies. Repeated floods for the same
+ * unknown destination on a device within the suppress window are dropped too;
+ * for broadcasts that is an ARP request from the same host for the same target,
+ * other broadcasts are never suppressed.
+ */
+class FloodControl {
+
+    private static final int MAX_RECENT_FLOODS = 65536;
+
+    private final TopologyService topologyService;
+    private final EdgePortService edgePortService;
+
+    private final Map<DeviceId, List<PortNumber>> floodPorts = Maps.newConcurrentMap();
+    private volatile Cache<FloodKey, Boolean> recentFloods;
+
+    private final AtomicLong floodedCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong loopedCount = new AtomicLong();
+
+    /**
+     * Creates a flood controller.
+     *
+     * @param topologyService topology service
+     * @param edgePortService edge port service
+     * @param suppressWindow suppress window in milliseconds, 0 to disable
+     */
+    FloodControl(TopologyService topologyService, EdgePortService edgePortService, int suppressWindow) {
+        this.topologyService = topologyService;
+        this.edgePortService = edgePortService;
+        setSuppressWindow(suppressWindow);
+    }
+
+    /**
+     * Changes the suppress window, forgetting recent floods.
+     *
+     * @param suppressWindow suppress window in milliseconds, 0 to disable
+     */
+    void setSuppressWindow(int suppressWindow) {
+        recentFloods = suppressWindow <= 0 ? null : CacheBuilder.newBuilder()
+            .expireAfterWrite(suppressWindow, TimeUnit.MILLISECONDS)
+            .maximumSize(MAX_RECENT_FLOODS)
+            .build();
+    }
+
+    /**
+     * Drops the cached flood ports, to be recomputed from the current
+     * topology on the next flood.
+     */
+    void invalidate() {
+        floodPorts.clear();
+    }
+
+    /**
+     * Checks whether a packet should be flooded, counting it either way.
+     *
+     * @param ingress connect point the packet was received on
+     * @param ethPkt parsed packet
+     * @return true if the packet should be flooded, false if it must be dropped
+     */
+    boolean admit(ConnectPoint ingress, Ethernet ethPkt) {
+        Topology topology = topologyService.currentTopology();
+        if (topologyService.isInfrastructure(topology, ingress)
+                && !topologyService.isBroadcastPoint(topology, ingress)) {
+            loopedCount.incrementAndGet();
+            return false;
+        }
+
+        Cache<FloodKey, Boolean> floods = recentFloods;
+        FloodKey key = floods == null ? null : floodKey(ingress.deviceId(), ethPkt);
+        if (key != null && floods.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+
+        floodedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns what makes a flood a repeat of an earlier one, or null if it
+     * must never be suppressed.
+     */
+    private static FloodKey floodKey(DeviceId deviceId, Ethernet ethPkt) {
+        MacAddress dst = ethPkt.getDestinationMAC();
+        if (!dst.isMulticast()) {
+            return new FloodKey(deviceId, dst.toLong(), -1);
+        }
+
+        // Group destinations are shared by every host, so tell them apart by source
+        long src = ethPkt.getSourceMAC().toLong();
+        if (!dst.isBroadcast()) {
+            return new FloodKey(deviceId, src, dst.toLong());
+        }
+
+        // A host resolves several addresses at once at boot, only the same target is a repeat
+        if (ethPkt.getEtherType() == Ethernet.TYPE_ARP && ethPkt.getPayload() instanceof ARP) {
+            byte[] target = ((ARP) ethPkt.getPayload()).getTargetProtocolAddress();
+            if (target != null && target.length == Ip4Address.BYTE_LENGTH) {
+                return new FloodKey(deviceId, src, Ip4Address.valueOf(target).toInt() & 0xffffffffL);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the treatment flooding a packet along the broadcast tree.
+     *
+     * @param ingress connect point the packet was received on
+     * @return flood treatment
+     */
+    TrafficTreatment floodTreatment(ConnectPoint ingress) {
+        List<PortNumber> ports = floodPorts.computeIfAbsent(ingress.deviceId(), this::computeFloodPorts);
+        if (ports.isEmpty()) {
+            // Topology not discovered yet
+            return DefaultTrafficTreatment.builder().setOutput(PortNumber.FLOOD).build();
+        }
+
+        TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
+        for (PortNumber port : ports) {
+            if (!port.equals(ingress.port())) {
+                builder.setOutput(port);
+            }
+        }
+        return builder.build();
+    }
+
+    private List<PortNumber> computeFloodPorts(DeviceId deviceId) {
+        List<PortNumber> ports = Lists.newArrayList();
+        for (ConnectPoint cp : edgePortService.getEdgePoints(deviceId)) {
+            ports.add(cp.port());
+        }
+
+        Topology topology = topologyService.currentTopology();
+        for (TopologyEdge edge : topologyService.getGraph(topology).getEdgesFrom(new DefaultTopologyVertex(deviceId))) {
+            ConnectPoint cp = edge.link().src();
+            if (topologyService.isBroadcastPoint(topology, cp) && !ports.contains(cp.port())) {
+                ports.add(cp.port());
+            }
+        }
+        return ports;
+    }
+
+    long floodedCount() {
+        return floodedCount.get();
+    }
+
+    long suppressedCount() {
+        return suppressedCount.get();
+    }
+
+    long loopedCount() {
+        return loopedCount.get();
+    }
+
+    private static final class FloodKey {
+        private final DeviceId deviceId;
+        private final long key;
+        private final long target;
+
+        private FloodKey(DeviceId deviceId, long key, long target) {
+            this.deviceId = deviceId;
+            this.key = key;
+            this.target = target;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, key, target);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FloodKey)) {
+                return false;
+            }
+            FloodKey that = (FloodKey) obj;
+            return key == that.key && target == that.target && deviceId.equals(that.deviceId);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import com.google.common.collect.Maps;
+import org.onlab.util.AbstractAccumulator;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+
+/**
+ * Coalesces flow rule operations and applies them as one
+ * {@link FlowRuleOperations} batch per device, once the batch is full or the
+ * batch window has passed.
+ */
+class FlowRuleBatcher extends AbstractAccumulator<FlowRuleOperation> {
+
+    private final FlowRuleService flowRuleService;
+
+    /**
+     * Creates a flow rule batcher.
+     *
+     * @param flowRuleService flow rule service
+     * @param timer timer used to flush batches
+     * @param maxItems maximum number of operations in a batch
+     * @param maxBatchMillis maximum time an operation waits in a batch
+     */
+    FlowRuleBatcher(FlowRuleService flowRuleService, Timer timer, int maxItems, int maxBatchMillis) {
+        super(timer, maxItems, maxBatchMillis, maxBatchMillis);
+        this.flowRuleService = flowRuleService;
+    }
+
+    @Override
+    public void processItems(List<FlowRuleOperation> items) {
+        // A burst of packet-ins for the same flow queues the same rule many times, keep the last operation
+        Map<DeviceId, Map<FlowId, FlowRuleOperation>> devices = Maps.newHashMap();
+        for (FlowRuleOperation op : items) {
+            devices.computeIfAbsent(op.rule().deviceId(), deviceId -> Maps.newLinkedHashMap())
+                .put(op.rule().id(), op);
+        }
+
+        for (Map<FlowId, FlowRuleOperation> ops : devices.values()) {
+            FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+            for (FlowRuleOperation op : ops.values()) {
+                switch (op.type()) {
+                    case ADD:
+                        builder.add(op.rule());
+                        break;
+                    case MODIFY:
+                        builder.modify(op.rule());
+                        break;
+                    case REMOVE:
+                        builder.remove(op.rule());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            flowRuleService.apply(builder.build());
+        }
+    }
+}
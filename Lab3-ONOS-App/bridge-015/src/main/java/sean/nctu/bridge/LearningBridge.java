@@ -3,29 +3,34 @@
  */
 package sean.nctu.bridge;
 
-import com.google.common.collect.Maps;
 import org.onlab.packet.Ethernet;
 import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
-import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
+import org.onosproject.net.edge.EdgePortService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
-import org.onosproject.net.flowobjective.DefaultForwardingObjective;
-import org.onosproject.net.flowobjective.FlowObjectiveService;
-import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.PacketContext;
 import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -36,25 +41,88 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.util.Dictionary;
+import java.util.Timer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Component(immediate = true)
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOOD_SUPPRESS_WINDOW;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOOD_SUPPRESS_WINDOW_DEFAULT;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOW_BATCH_SIZE;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOW_BATCH_SIZE_DEFAULT;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOW_BATCH_WINDOW;
+import static sean.nctu.bridge.OsgiPropertyConstants.FLOW_BATCH_WINDOW_DEFAULT;
+import static sean.nctu.bridge.OsgiPropertyConstants.MATCH_DST_ONLY;
+import static sean.nctu.bridge.OsgiPropertyConstants.MATCH_DST_ONLY_DEFAULT;
+
+@Component(
+    immediate = true,
+    property = {
+        FLOW_BATCH_SIZE + ":Integer=" + FLOW_BATCH_SIZE_DEFAULT,
+        FLOW_BATCH_WINDOW + ":Integer=" + FLOW_BATCH_WINDOW_DEFAULT,
+        MATCH_DST_ONLY + ":Boolean=" + MATCH_DST_ONLY_DEFAULT,
+        FLOOD_SUPPRESS_WINDOW + ":Integer=" + FLOOD_SUPPRESS_WINDOW_DEFAULT,
+    }
+)
 public class LearningBridge {
 
+    /* Learned stations age out together with the flows installed for them. */
+    private static final int FLOW_TIMEOUT = 30;
+    private static final int MAC_TABLE_CAPACITY = 4096;
+    private static final int CACHED_PORTS = 256;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private ApplicationId appId;
 
-    protected Map<DeviceId, Map<MacAddress, PortNumber>> macTables = Maps.newConcurrentMap();
+    protected MacTable macTable = new MacTable(MAC_TABLE_CAPACITY, FLOW_TIMEOUT);
+
+    private ScheduledExecutorService agingExecutor;
+
+    private final TrafficTreatment[] outputTreatments = new TrafficTreatment[CACHED_PORTS];
+    private final AtomicLong unlearnedCount = new AtomicLong();
+
+    /** Maximum number of flow rules installed in one batch. */
+    private int flowBatchSize = FLOW_BATCH_SIZE_DEFAULT;
+
+    /** Maximum time in milliseconds a flow rule waits for its batch. */
+    private int flowBatchWindow = FLOW_BATCH_WINDOW_DEFAULT;
+
+    /** Install one rule per destination MAC instead of one per source/destination pair. */
+    private boolean matchDstOnly = MATCH_DST_ONLY_DEFAULT;
+
+    /** Time in milliseconds repeated floods for the same unknown destination are dropped, 0 to disable. */
+    private int floodSuppressWindow = FLOOD_SUPPRESS_WINDOW_DEFAULT;
+
+    private FloodControl floodControl;
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+    private final EdgePortListener edgePortListener = new InternalEdgePortListener();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final PairRules pairRules = new PairRules();
+
+    private final Timer batchTimer = new Timer("bridge-flow-batcher", true);
+    private volatile FlowRuleBatcher flowBatcher;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected FlowRuleService flowRuleService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    protected FlowObjectiveService flowObjectiveService;
+    protected CoreService coreService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    protected CoreService coreService;
+    protected ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected TopologyService topologyService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected EdgePortService edgePortService;
 
     private SeanPacketProcessor processor = new SeanPacketProcessor();
 
@@ -62,29 +130,80 @@ public class LearningBridge {
     protected PacketService packetService;
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = coreService.registerApplication("sean.nctu.bridge");
+        cfgService.registerProperties(getClass());
+        floodControl = new FloodControl(topologyService, edgePortService, floodSuppressWindow);
+        readComponentConfiguration(context);
+        topologyService.addListener(topologyListener);
+        edgePortService.addListener(edgePortListener);
+        flowRuleService.addListener(flowRuleListener);
         packetService.addProcessor(processor, PacketProcessor.director(2));
         requestIntercepts();
+
+        agingExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("sean/bridge", "mac-aging", log));
+        agingExecutor.scheduleAtFixedRate(this::ageMacTable, FLOW_TIMEOUT, FLOW_TIMEOUT, TimeUnit.SECONDS);
     }
 
     @Deactivate
     protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        topologyService.removeListener(topologyListener);
+        edgePortService.removeListener(edgePortListener);
+        flowRuleService.removeListener(flowRuleListener);
         packetService.removeProcessor(processor);
+        agingExecutor.shutdownNow();
+        batchTimer.cancel();
+        log.info("Flooded {} packets, suppressed {} repeated floods and dropped {} looped packets.",
+                 floodControl.floodedCount(), floodControl.suppressedCount(), floodControl.loopedCount());
     }
 
     @Modified
     public void modified(ComponentContext context) {
+        readComponentConfiguration(context);
         requestIntercepts();
     }
 
+    private void readComponentConfiguration(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        String s = get(properties, FLOW_BATCH_SIZE);
+        flowBatchSize = isNullOrEmpty(s) ? FLOW_BATCH_SIZE_DEFAULT : Integer.parseInt(s.trim());
+
+        s = get(properties, FLOW_BATCH_WINDOW);
+        flowBatchWindow = isNullOrEmpty(s) ? FLOW_BATCH_WINDOW_DEFAULT : Integer.parseInt(s.trim());
+
+        Boolean enabled = isPropertyEnabled(properties, MATCH_DST_ONLY);
+        matchDstOnly = enabled == null ? MATCH_DST_ONLY_DEFAULT : enabled;
+        log.info("Flow rules match on {}.", matchDstOnly ? "destination MAC only" : "source and destination MAC");
+
+        s = get(properties, FLOOD_SUPPRESS_WINDOW);
+        floodSuppressWindow = isNullOrEmpty(s) ? FLOOD_SUPPRESS_WINDOW_DEFAULT : Integer.parseInt(s.trim());
+        floodControl.setSuppressWindow(floodSuppressWindow);
+
+        // The accumulator needs room for at least two items and a positive window
+        flowBatchSize = Math.max(flowBatchSize, 2);
+        flowBatchWindow = Math.max(flowBatchWindow, 1);
+
+        // Rules still queued in a replaced batcher are flushed by its own window
+        flowBatcher = new FlowRuleBatcher(flowRuleService, batchTimer, flowBatchSize, flowBatchWindow);
+        log.info("Flow rules are installed in batches of up to {} within {} ms.", flowBatchSize, flowBatchWindow);
+    }
+
     private void requestIntercepts() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
-        packetService.requestPackets(selector.matchEthType(Ethernet.TYPE_IPV4).build(),
+        packetService.requestPackets(DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_IPV4).build(),
                 PacketPriority.REACTIVE, appId);
-        packetService.requestPackets(selector.matchEthType(Ethernet.TYPE_ARP).build(),
+        packetService.requestPackets(DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_ARP).build(),
                 PacketPriority.REACTIVE, appId);
-        // TODO: Ethernet.TYPE_IPV6
+        packetService.requestPackets(DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_IPV6).build(),
+                PacketPriority.REACTIVE, appId);
+    }
+
+    private void ageMacTable() {
+        int expired = macTable.expire(System.currentTimeMillis());
+        if (expired > 0) {
+            log.info("{} MAC address entries expired.", expired);
+        }
     }
 
 
@@ -103,59 +222,144 @@ public class LearningBridge {
             }
 
             ConnectPoint cp = pkt.receivedFrom();
-
-            macTables.putIfAbsent(cp.deviceId(), Maps.newConcurrentMap());
-            Map<MacAddress, PortNumber> macTable = macTables.get(cp.deviceId());
+            long now = System.currentTimeMillis();
 
             MacAddress srcMac = ethPkt.getSourceMAC();
             MacAddress dstMac = ethPkt.getDestinationMAC();
 
-            if (macTable.get(srcMac) == null) {
-                log.info("Add an entry to the port table of `" + cp.deviceId() + "`. " +
-                         "MAC address: `" + srcMac + "` => Port: `" + cp.port() + "`.");
-                macTable.put(srcMac, cp.port());
+            long inPort = cp.port().toLong();
+            long prevPort = macTable.learn(cp.deviceId(), srcMac.toLong(), inPort, now);
+            if (prevPort != inPort) {
+                logLearning(cp, srcMac, prevPort);
+                if (prevPort >= 0) {
+                    stationMoved(cp, srcMac);
+                }
             }
 
-            PortNumber outPort = macTable.get(dstMac);
-            if (outPort != null) {
-                log.info("MAC address `" + dstMac + "` is matched on `" + cp.deviceId() + "`. Install a flow rule.");
-
-                context.treatmentBuilder().setOutput(outPort);
-                TrafficSelector selector = DefaultTrafficSelector.builder()
-                    .matchEthSrc(srcMac).matchEthDst(dstMac).build();
-                TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    .setOutput(outPort).build();
-                if (false) {
-                    FlowRule fr = DefaultFlowRule.builder()
-                        .fromApp(appId)
-                        .forDevice(cp.deviceId())
-                        .withSelector(selector)
-                        .withTreatment(treatment)
-                        .withPriority(30)
-                        .makeTemporary(30)
-                        .build();
-
-                    flowRuleService.applyFlowRules(fr);
-                } else {
-                    ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
-                        .fromApp(appId)
-                        .withSelector(selector)
-                        .withTreatment(treatment)
-                        .withPriority(30)
-                        .makeTemporary(30)
-                        .withFlag(ForwardingObjective.Flag.VERSATILE)
-                        .add();
-
-                    flowObjectiveService.forward(cp.deviceId(), forwardingObjective);
-                }
+            long outPort = macTable.lookup(cp.deviceId(), dstMac.toLong(), now);
+            if (outPort != MacTable.MISS) {
+                log.debug("MAC address `{}` is matched on `{}`. Install a flow rule.", dstMac, cp.deviceId());
 
+                TrafficTreatment treatment = outputTreatment(outPort);
+                installRule(cp, srcMac, dstMac, treatment);
+                context.treatmentBuilder().addTreatment(treatment);
                 context.send();
             } else {
-                log.info("MAC address `" + dstMac + "` is missed on `" + cp.deviceId() + "`. Flood the packet.");
+                if (!floodControl.admit(cp, ethPkt)) {
+                    log.debug("MAC address `{}` is missed on `{}`. Flood suppressed.", dstMac, cp.deviceId());
+                    context.block();
+                    return;
+                }
+                log.debug("MAC address `{}` is missed on `{}`. Flood the packet.", dstMac, cp.deviceId());
 
-                context.treatmentBuilder().setOutput(PortNumber.FLOOD);
+                context.treatmentBuilder().addTreatment(floodControl.floodTreatment(cp));
                 context.send();
             }
         }
     }
+
+    private void logLearning(ConnectPoint cp, MacAddress srcMac, long prevPort) {
+        if (prevPort == MacTable.FULL) {
+            // Sampled, a full table would otherwise log on every packet-in
+            if ((unlearnedCount.getAndIncrement() & 1023) == 0) {
+                log.warn("Port table of `{}` is full. MAC address `{}` is not learned ({} so far).",
+                         cp.deviceId(), srcMac, unlearnedCount.get());
+            }
+        } else if (prevPort == MacTable.MISS) {
+            if (log.isDebugEnabled()) {
+                log.debug("Add an entry to the port table of `{}`. MAC address: `{}` => Port: `{}`.",
+                          cp.deviceId(), srcMac, cp.port());
+            }
+        } else {
+            log.info("MAC address `{}` moved on `{}`. Port: `{}` => `{}`.",
+                     srcMac, cp.deviceId(), PortNumber.portNumber(prevPort), cp.port());
+        }
+    }
+
+    /**
+     * Reprograms the rules towards a station that moved to another port. In
+     * destination only mode the rule for the new port has the same flow id
+     * and replaces the old one; otherwise the pair rules still pointing at
+     * the old port are removed.
+     *
+     * @param cp connect point the station was seen on
+     * @param mac MAC address of the station
+     */
+    private void stationMoved(ConnectPoint cp, MacAddress mac) {
+        // Pair rules left from before a switch to destination only mode go too
+        for (FlowRule rule : pairRules.remove(cp.deviceId(), mac)) {
+            flowBatcher.add(new FlowRuleOperation(rule, FlowRuleOperation.Type.REMOVE));
+        }
+
+        if (matchDstOnly) {
+            installRule(cp, null, mac, outputTreatment(cp.port().toLong()));
+        }
+    }
+
+    /**
+     * Returns the output treatment for a port. Treatments for the low port
+     * numbers are built once and shared, as they are immutable.
+     *
+     * @param port port number as long
+     * @return output treatment
+     */
+    private TrafficTreatment outputTreatment(long port) {
+        if (port < 0 || port >= CACHED_PORTS) {
+            return DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build();
+        }
+        TrafficTreatment treatment = outputTreatments[(int) port];
+        if (treatment == null) {
+            // Racing threads build equal treatments, so whichever wins is fine
+            treatment = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build();
+            outputTreatments[(int) port] = treatment;
+        }
+        return treatment;
+    }
+
+    private void installRule(ConnectPoint cp, MacAddress srcMac, MacAddress dstMac, TrafficTreatment treatment) {
+        TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder().matchEthDst(dstMac);
+        if (!matchDstOnly) {
+            selectorBuilder.matchEthSrc(srcMac);
+        }
+        TrafficSelector selector = selectorBuilder.build();
+        FlowRule rule = DefaultFlowRule.builder()
+            .fromApp(appId)
+            .forDevice(cp.deviceId())
+            .withSelector(selector)
+            .withTreatment(treatment)
+            .withPriority(30)
+            .makeTemporary(FLOW_TIMEOUT)
+            .build();
+
+        if (!matchDstOnly) {
+            pairRules.add(rule);
+        }
+        flowBatcher.add(new FlowRuleOperation(rule, FlowRuleOperation.Type.ADD));
+    }
+
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            floodControl.invalidate();
+        }
+    }
+
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_REMOVED && event.subject().appId() == appId.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            pairRules.removed(event.subject());
+        }
+    }
+
+    private class InternalEdgePortListener implements EdgePortListener {
+        @Override
+        public void event(EdgePortEvent event) {
+            floodControl.invalidate();
+        }
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import com.google.common.collect.Maps;
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+
+/**
+ * MAC learning table with one bounded shard per device.
+ * <p>
+ * MAC addresses are stored as primitive longs in an open-addressing table,
+ * with the port number and last-seen time packed into a second long, so a
+ * learned station costs 16 bytes per slot instead of a boxed MAC, port and
+ * map node. Stations not seen for the idle timeout are aged out.
+ */
+public class MacTable {
+
+    /** Returned when the MAC address is not in the table. */
+    public static final long MISS = -1;
+
+    /** Returned by {@link #learn} when the device table is full. */
+    public static final long FULL = -2;
+
+    private final Map<DeviceId, Shard> shards = Maps.newConcurrentMap();
+    private final int capacity;
+    private final long idleTimeout;
+
+    /**
+     * Creates a MAC table.
+     *
+     * @param capacity maximum number of stations per device
+     * @param idleTimeout seconds without traffic before a station expires
+     */
+    public MacTable(int capacity, int idleTimeout) {
+        this.capacity = capacity;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Looks up the port a station was learned on.
+     *
+     * @param deviceId device
+     * @param mac MAC address as long
+     * @param now current time in milliseconds
+     * @return port number, or {@link #MISS}
+     */
+    public long lookup(DeviceId deviceId, long mac, long now) {
+        Shard shard = shards.get(deviceId);
+        if (shard == null) {
+            return MISS;
+        }
+        return shard.lookup(mac, now / 1000);
+    }
+
+    /**
+     * Learns or refreshes a station.
+     *
+     * @param deviceId device
+     * @param mac MAC address as long
+     * @param port port number as long
+     * @param now current time in milliseconds
+     * @return previous port (differs from {@code port} if the station moved),
+     *         {@link #MISS} if the station is new, or {@link #FULL} if it was
+     *         not learned because the device table is full
+     */
+    public long learn(DeviceId deviceId, long mac, long port, long now) {
+        Shard shard = shards.get(deviceId);
+        if (shard == null) {
+            shards.putIfAbsent(deviceId, new Shard());
+            shard = shards.get(deviceId);
+        }
+        return shard.learn(mac, port, now / 1000);
+    }
+
+    /**
+     * Removes all stations that have been idle for longer than the timeout.
+     *
+     * @param now current time in milliseconds
+     * @return number of expired stations
+     */
+    public int expire(long now) {
+        int expired = 0;
+        for (Shard shard : shards.values()) {
+            expired += shard.expire(now / 1000);
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of stations learned on a device.
+     *
+     * @param deviceId device
+     * @return number of stations
+     */
+    public int size(DeviceId deviceId) {
+        Shard shard = shards.get(deviceId);
+        return shard == null ? 0 : shard.size();
+    }
+
+    /**
+     * Open-addressing table with linear probing and backward-shift deletion.
+     * A key of zero marks an empty slot, so stored keys carry a presence bit
+     * above the 48 MAC bits.
+     */
+    private final class Shard {
+        private static final int INITIAL_SLOTS = 64;
+        private static final long PRESENT = 1L << 48;
+
+        private long[] keys = new long[INITIAL_SLOTS];
+        private long[] values = new long[INITIAL_SLOTS];
+        private int size;
+
+        synchronized long lookup(long mac, long seconds) {
+            int slot = find(mac | PRESENT);
+            if (slot < 0 || isExpired(values[slot], seconds)) {
+                return MISS;
+            }
+            return values[slot] >>> 32;
+        }
+
+        synchronized long learn(long mac, long port, long seconds) {
+            long key = mac | PRESENT;
+            long value = (port << 32) | (seconds & 0xffffffffL);
+
+            int slot = find(key);
+            if (slot >= 0) {
+                long previous = values[slot];
+                values[slot] = value;
+                return isExpired(previous, seconds) ? MISS : previous >>> 32;
+            }
+
+            if (size >= capacity && expire(seconds) == 0) {
+                return FULL;
+            }
+            if (size + 1 > keys.length * 3 / 4) {
+                resize(keys.length * 2);
+            }
+            insert(key, value);
+            size++;
+            return MISS;
+        }
+
+        synchronized int expire(long seconds) {
+            int expired = 0;
+            int i = 0;
+            while (i < keys.length) {
+                if (keys[i] != 0 && isExpired(values[i], seconds)) {
+                    delete(i);
+                    expired++;
+                    // delete() may have shifted another entry into slot i
+                } else {
+                    i++;
+                }
+            }
+            size -= expired;
+            return expired;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private boolean isExpired(long value, long seconds) {
+            return seconds - (value & 0xffffffffL) > idleTimeout;
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long key, long value) {
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void delete(int slot) {
+            int mask = keys.length - 1;
+            int hole = slot;
+            int i = (slot + 1) & mask;
+            while (keys[i] != 0) {
+                int home = index(keys[i], mask);
+                // Move the entry back if its home slot is not between the hole and its position
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    hole = i;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[hole] = 0;
+            values[hole] = 0;
+        }
+
+        private void resize(int slots) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[slots];
+            values = new long[slots];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private int index(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+}
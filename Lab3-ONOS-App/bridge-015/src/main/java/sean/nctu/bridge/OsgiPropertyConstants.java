@@ -0,0 +1,25 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    static final String FLOW_BATCH_SIZE = "flowBatchSize";
+    static final int FLOW_BATCH_SIZE_DEFAULT = 64;
+
+    static final String FLOW_BATCH_WINDOW = "flowBatchWindow";
+    static final int FLOW_BATCH_WINDOW_DEFAULT = 20;
+
+    static final String MATCH_DST_ONLY = "matchDstOnly";
+    static final boolean MATCH_DST_ONLY_DEFAULT = false;
+
+    static final String FLOOD_SUPPRESS_WINDOW = "floodSuppressWindow";
+    static final int FLOOD_SUPPRESS_WINDOW_DEFAULT = 1000;
+}
@@ -0,0 +1,101 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import com.google.common.collect.Maps;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Source/destination pair rules indexed by device and destination MAC, so
+ * the rules towards a station that moved are found without scanning the
+ * flow rule store. Rules leave the index when the device removes them.
+ */
+class PairRules {
+
+    private final Map<Station, Map<FlowId, FlowRule>> rules = Maps.newConcurrentMap();
+
+    /**
+     * Records an installed pair rule.
+     *
+     * @param rule flow rule matching the destination MAC
+     */
+    void add(FlowRule rule) {
+        Station station = station(rule);
+        if (station != null) {
+            rules.computeIfAbsent(station, s -> Maps.newConcurrentMap()).put(rule.id(), rule);
+        }
+    }
+
+    /**
+     * Forgets a rule the device removed.
+     *
+     * @param rule removed flow rule
+     */
+    void removed(FlowRule rule) {
+        Station station = station(rule);
+        if (station != null) {
+            rules.computeIfPresent(station, (s, ids) -> {
+                ids.remove(rule.id());
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /**
+     * Takes the rules towards a station out of the index.
+     *
+     * @param deviceId device
+     * @param dst destination MAC address
+     * @return rules to remove from the device
+     */
+    Collection<FlowRule> remove(DeviceId deviceId, MacAddress dst) {
+        Map<FlowId, FlowRule> ids = rules.remove(new Station(deviceId, dst.toLong()));
+        return ids == null ? Collections.emptyList() : ids.values();
+    }
+
+    private static Station station(FlowRule rule) {
+        Criterion criterion = rule.selector().getCriterion(Criterion.Type.ETH_DST);
+        if (!(criterion instanceof EthCriterion)) {
+            return null;
+        }
+        return new Station(rule.deviceId(), ((EthCriterion) criterion).mac().toLong());
+    }
+
+    private static final class Station {
+        private final DeviceId deviceId;
+        private final long mac;
+
+        private Station(DeviceId deviceId, long mac) {
+            this.deviceId = deviceId;
+            this.mac = mac;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, mac);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Station)) {
+                return false;
+            }
+            Station that = (Station) obj;
+            return mac == that.mac && deviceId.equals(that.deviceId);
+        }
+    }
+}
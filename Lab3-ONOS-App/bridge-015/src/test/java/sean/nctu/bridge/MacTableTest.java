@@ -0,0 +1,139 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the MAC learning table.
+ */
+public class MacTableTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId OTHER_DEVICE = DeviceId.deviceId("of:0000000000000002");
+    private static final long MAC = 0x0200_0000_0001L;
+    private static final long OTHER = 0x0200_0000_0002L;
+    private static final int IDLE_TIMEOUT = 30;
+
+    @Test
+    public void learnAndLookup() {
+        MacTable table = new MacTable(16, IDLE_TIMEOUT);
+        assertEquals(MacTable.MISS, table.lookup(DEVICE, MAC, 0));
+
+        assertEquals(MacTable.MISS, table.learn(DEVICE, MAC, 1, 0));
+        assertEquals(1, table.lookup(DEVICE, MAC, 0));
+        assertEquals(MacTable.MISS, table.lookup(DEVICE, OTHER, 0));
+        assertEquals(1, table.size(DEVICE));
+
+        // Seen again on the same port
+        assertEquals(1, table.learn(DEVICE, MAC, 1, 1000));
+        assertEquals(1, table.size(DEVICE));
+    }
+
+    @Test
+    public void full() {
+        MacTable table = new MacTable(4, IDLE_TIMEOUT);
+        for (long i = 0; i < 4; i++) {
+            assertEquals(MacTable.MISS, table.learn(DEVICE, MAC + i, 1, 0));
+        }
+        assertEquals(MacTable.FULL, table.learn(DEVICE, OTHER + 10, 1, 0));
+        assertEquals(MacTable.MISS, table.lookup(DEVICE, OTHER + 10, 0));
+        assertEquals(4, table.size(DEVICE));
+
+        // Known stations are still refreshed
+        assertEquals(1, table.learn(DEVICE, MAC, 2, 0));
+
+        // Idle stations make room
+        assertEquals(MacTable.MISS, table.learn(DEVICE, OTHER + 10, 1, 31_000));
+        assertEquals(1, table.size(DEVICE));
+    }
+
+    @Test
+    public void moved() {
+        MacTable table = new MacTable(16, IDLE_TIMEOUT);
+        table.learn(DEVICE, MAC, 1, 0);
+
+        assertEquals(1, table.learn(DEVICE, MAC, 2, 1000));
+        assertEquals(2, table.lookup(DEVICE, MAC, 1000));
+        assertEquals(2, table.learn(DEVICE, MAC, 2, 2000));
+        assertEquals(1, table.size(DEVICE));
+    }
+
+    @Test
+    public void idleExpiry() {
+        MacTable table = new MacTable(16, IDLE_TIMEOUT);
+        table.learn(DEVICE, MAC, 1, 0);
+
+        assertEquals(1, table.lookup(DEVICE, MAC, 30_000));
+        assertEquals(1, table.lookup(DEVICE, MAC, 30_999));
+        assertEquals(MacTable.MISS, table.lookup(DEVICE, MAC, 31_000));
+
+        assertEquals(0, table.expire(30_999));
+        assertEquals(1, table.expire(31_000));
+        assertEquals(0, table.size(DEVICE));
+    }
+
+    @Test
+    public void relearnAfterIdle() {
+        MacTable table = new MacTable(16, IDLE_TIMEOUT);
+        table.learn(DEVICE, MAC, 1, 0);
+
+        // Expired but not yet removed, so the station counts as new, not moved
+        assertEquals(MacTable.MISS, table.learn(DEVICE, MAC, 2, 31_000));
+        assertEquals(2, table.lookup(DEVICE, MAC, 31_000));
+        assertEquals(1, table.size(DEVICE));
+    }
+
+    @Test
+    public void deleteFromProbeChains() {
+        // Random stations, so that probe chains form, half of them expiring
+        MacTable table = new MacTable(4096, IDLE_TIMEOUT);
+        Random random = new Random(42);
+        long[] macs = new long[1000];
+        for (int i = 0; i < macs.length; i++) {
+            macs[i] = random.nextLong() & 0xffff_ffff_ffffL;
+            table.learn(DEVICE, macs[i], 1 + i % 48, i % 2 == 0 ? 0 : 20_000);
+        }
+
+        assertEquals(macs.length / 2, table.expire(40_000));
+        assertEquals(macs.length / 2, table.size(DEVICE));
+        for (int i = 0; i < macs.length; i++) {
+            long expected = i % 2 == 0 ? MacTable.MISS : 1 + i % 48;
+            assertEquals(expected, table.lookup(DEVICE, macs[i], 40_000));
+        }
+
+        // The freed slots are reused and every station stays reachable
+        for (int i = 0; i < macs.length; i += 2) {
+            assertEquals(MacTable.MISS, table.learn(DEVICE, macs[i], 7, 40_000));
+        }
+        for (int i = 0; i < macs.length; i++) {
+            long expected = i % 2 == 0 ? 7 : 1 + i % 48;
+            assertEquals(expected, table.lookup(DEVICE, macs[i], 40_000));
+        }
+        assertEquals(macs.length, table.size(DEVICE));
+    }
+
+    @Test
+    public void perDevice() {
+        MacTable table = new MacTable(2, IDLE_TIMEOUT);
+        table.learn(DEVICE, MAC, 1, 0);
+        table.learn(OTHER_DEVICE, MAC, 2, 0);
+        assertEquals(1, table.lookup(DEVICE, MAC, 0));
+        assertEquals(2, table.lookup(OTHER_DEVICE, MAC, 0));
+
+        // A full device does not limit the others
+        table.learn(DEVICE, OTHER, 1, 0);
+        assertEquals(MacTable.FULL, table.learn(DEVICE, OTHER + 1, 1, 0));
+        assertEquals(MacTable.MISS, table.learn(OTHER_DEVICE, OTHER + 1, 2, 0));
+        assertEquals(2, table.size(DEVICE));
+        assertEquals(2, table.size(OTHER_DEVICE));
+        assertEquals(0, table.size(DeviceId.deviceId("of:0000000000000003")));
+        assertEquals(MacTable.MISS, table.lookup(DeviceId.deviceId("of:0000000000000003"), MAC, 0));
+    }
+}
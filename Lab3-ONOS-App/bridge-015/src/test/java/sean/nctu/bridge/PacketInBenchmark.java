@@ -0,0 +1,238 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package sean.nctu.bridge;
+
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortServiceAdapter;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.FlowObjectiveServiceAdapter;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.DefaultPacketContext;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Packet-ins per second on a single core through the packet processor of
+ * {@link LearningBridge}, against a copy of the processor as it was before
+ * the MAC table, treatment cache, rule batching and logging changes.
+ * <p>
+ * The services are stubs that do nothing. Every packet goes to a learned
+ * station, so each one learns its source, finds its destination and queues
+ * a rule; floods are not covered.
+ *
+ * <p>Not run by surefire. After {@code mvn test-compile}, run with
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main PacketInBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PacketInBenchmark {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+
+    @Param({"16", "1024"})
+    private int stations;
+
+    private InboundPacket[] packets;
+    private int next;
+
+    private LearningBridge bridge;
+    private PacketProcessor processor;
+    private PacketProcessor baseline;
+
+    @Setup
+    public void setUp() {
+        packets = new InboundPacket[stations];
+        for (int i = 0; i < stations; i++) {
+            Ethernet eth = new Ethernet();
+            eth.setSourceMACAddress(MacAddress.valueOf(0x020000000000L + i));
+            eth.setDestinationMACAddress(MacAddress.valueOf(0x020000000000L + (i + 1) % stations));
+            eth.setEtherType(Ethernet.TYPE_IPV4);
+            ConnectPoint cp = new ConnectPoint(DEVICE, PortNumber.portNumber(1 + i % 48));
+            packets[i] = new DefaultInboundPacket(cp, eth, ByteBuffer.wrap(eth.serialize()));
+        }
+
+        bridge = new LearningBridge();
+        bridge.coreService = new CoreServiceAdapter() {
+            @Override
+            public ApplicationId registerApplication(String name) {
+                return new DefaultApplicationId(1, name);
+            }
+        };
+        bridge.cfgService = new ComponentConfigAdapter();
+        bridge.flowRuleService = new FlowRuleServiceAdapter();
+        bridge.topologyService = new TopologyServiceAdapter();
+        bridge.edgePortService = new EdgePortServiceAdapter();
+        bridge.packetService = new PacketServiceAdapter() {
+            @Override
+            public void addProcessor(PacketProcessor packetProcessor, int priority) {
+                processor = packetProcessor;
+            }
+        };
+        bridge.activate(componentContext());
+
+        baseline = new BaselineProcessor(new DefaultApplicationId(1, "sean.nctu.bridge"),
+                                         new FlowObjectiveServiceAdapter());
+
+        // Learn every station, so the measured packets all hit
+        for (int i = 0; i < stations; i++) {
+            processor.process(context(packets[i]));
+            baseline.process(context(packets[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.deactivate();
+    }
+
+    @Benchmark
+    public PacketContext learningBridge() {
+        return process(processor);
+    }
+
+    @Benchmark
+    public PacketContext baseline() {
+        return process(baseline);
+    }
+
+    private PacketContext process(PacketProcessor packetProcessor) {
+        PacketContext context = context(packets[next]);
+        next = (next + 1) % stations;
+        packetProcessor.process(context);
+        return context;
+    }
+
+    private static PacketContext context(InboundPacket packet) {
+        DefaultOutboundPacket outPacket = new DefaultOutboundPacket(packet.receivedFrom().deviceId(),
+                DefaultTrafficTreatment.emptyTreatment(), packet.unparsed());
+        return new DefaultPacketContext(System.currentTimeMillis(), packet, outPacket, false) {
+            @Override
+            public void send() {
+                block();
+            }
+        };
+    }
+
+    private static ComponentContext componentContext() {
+        // Empty properties, so every option takes its default
+        return (ComponentContext) Proxy.newProxyInstance(PacketInBenchmark.class.getClassLoader(),
+                new Class<?>[]{ComponentContext.class},
+                (proxy, method, args) -> method.getName().equals("getProperties") ? new Hashtable<>() : null);
+    }
+
+    /**
+     * The packet processor of the first LearningBridge, kept as the baseline.
+     */
+    private static final class BaselineProcessor implements PacketProcessor {
+        private final Logger log = LoggerFactory.getLogger(getClass());
+        private final Map<DeviceId, Map<MacAddress, PortNumber>> macTables = Maps.newConcurrentMap();
+        private final ApplicationId appId;
+        private final FlowObjectiveService flowObjectiveService;
+
+        private BaselineProcessor(ApplicationId appId, FlowObjectiveService flowObjectiveService) {
+            this.appId = appId;
+            this.flowObjectiveService = flowObjectiveService;
+        }
+
+        @Override
+        public void process(PacketContext context) {
+            if (context.isHandled()) {
+                return;
+            }
+
+            InboundPacket pkt = context.inPacket();
+            Ethernet ethPkt = pkt.parsed();
+
+            if (ethPkt == null) {
+                return;
+            }
+
+            ConnectPoint cp = pkt.receivedFrom();
+
+            macTables.putIfAbsent(cp.deviceId(), Maps.newConcurrentMap());
+            Map<MacAddress, PortNumber> macTable = macTables.get(cp.deviceId());
+
+            MacAddress srcMac = ethPkt.getSourceMAC();
+            MacAddress dstMac = ethPkt.getDestinationMAC();
+
+            if (macTable.get(srcMac) == null) {
+                log.info("Add an entry to the port table of `" + cp.deviceId() + "`. " +
+                         "MAC address: `" + srcMac + "` => Port: `" + cp.port() + "`.");
+                macTable.put(srcMac, cp.port());
+            }
+
+            PortNumber outPort = macTable.get(dstMac);
+            if (outPort != null) {
+                log.info("MAC address `" + dstMac + "` is matched on `" + cp.deviceId() + "`. Install a flow rule.");
+
+                context.treatmentBuilder().setOutput(outPort);
+                TrafficSelector selector = DefaultTrafficSelector.builder()
+                    .matchEthSrc(srcMac).matchEthDst(dstMac).build();
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                    .setOutput(outPort).build();
+                ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+                    .fromApp(appId)
+                    .withSelector(selector)
+                    .withTreatment(treatment)
+                    .withPriority(30)
+                    .makeTemporary(30)
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .add();
+
+                flowObjectiveService.forward(cp.deviceId(), forwardingObjective);
+
+                context.send();
+            } else {
+                log.info("MAC address `" + dstMac + "` is missed on `" + cp.deviceId() + "`. Flood the packet.");
+
+                context.treatmentBuilder().setOutput(PortNumber.FLOOD);
+                context.send();
+            }
+        }
+    }
+}
@@ -19,8 +19,23 @@ import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_ADDED;
 import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_UPDATED;
 import static org.onosproject.net.config.basics.SubjectFactories.APP_SUBJECT_FACTORY;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.onlab.packet.DHCP;
 import org.onlab.packet.Ethernet;
@@ -35,21 +50,42 @@ import org.onlab.packet.dhcp.DhcpOption;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.Host;
 import org.onosproject.net.HostId;
 import org.onosproject.net.FilteredConnectPoint;
+import org.onosproject.net.Port;
 import org.onosproject.net.config.ConfigFactory;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.config.NetworkConfigEvent;
 import org.onosproject.net.config.NetworkConfigListener;
 import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
+import org.onosproject.net.edge.EdgePortService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.host.HostProvider;
+import org.onosproject.net.host.HostProviderRegistry;
+import org.onosproject.net.host.HostProviderService;
+import org.onosproject.net.intent.FlowRuleIntent;
 import org.onosproject.net.intent.Intent;
 import org.onosproject.net.intent.IntentService;
+import org.onosproject.net.intent.Key;
+import org.onosproject.net.intent.MultiPointToSinglePointIntent;
 import org.onosproject.net.intent.PointToPointIntent;
+import org.onosproject.net.intent.SinglePointToMultiPointIntent;
 import org.onosproject.net.packet.PacketContext;
 import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.provider.AbstractProvider;
+import org.onosproject.net.provider.ProviderId;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -59,15 +95,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_DHCPServerIp;
+import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_LeaseTime;
 import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_MessageType;
 import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_RequestedIP;
+import static org.onlab.util.Tools.groupedThreads;
 
 /** Sample Network Configuration Service Application. **/
 @Component(immediate = true)
 public class AppComponent {
 
+  private static final int DHCP_INTENT_PRIORITY = 42;
+
+  /* Clients or relayed leases tracked, and the lease assumed when a request names none (dhcpd max-lease-time). */
+  private static final int MAX_CLIENTS = 100000;
+  private static final long MAX_LEASE_TIME = 7200;
+  private static final int EXPIRY_INTERVAL = 60;
+
+  /* Admission of client messages per edge port, and the workers handling the admitted ones. */
+  private static final double PORT_RATE = 50;
+  private static final int PORT_BURST = 100;
+  private static final int WORKERS = 4;
+  private static final int WORK_QUEUE_SIZE = 4096;
+
   private final Logger log = LoggerFactory.getLogger(getClass());
   private final SrvConfigListener cfgListener = new SrvConfigListener();
+  private final InternalEdgeListener edgeListener = new InternalEdgeListener();
+  private final InternalDeviceListener deviceListener = new InternalDeviceListener();
   private final ConfigFactory<ApplicationId, SrvConfig> factory = new ConfigFactory<ApplicationId, SrvConfig>(
       APP_SUBJECT_FACTORY, SrvConfig.class, "UnicastDhcpConfig") {
     @Override
@@ -90,10 +143,46 @@ public class AppComponent {
   @Reference(cardinality = ReferenceCardinality.MANDATORY)
   protected CoreService coreService;
 
+  @Reference(cardinality = ReferenceCardinality.MANDATORY)
+  protected EdgePortService edgePortService;
+
+  @Reference(cardinality = ReferenceCardinality.MANDATORY)
+  protected HostProviderRegistry hostProviderRegistry;
+
+  @Reference(cardinality = ReferenceCardinality.MANDATORY)
+  protected DeviceService deviceService;
+
+  @Reference(cardinality = ReferenceCardinality.MANDATORY)
+  protected FlowRuleService flowRuleService;
+
   private PacketProcessor processor = new DhcpPacketProcessor();
-  private ConnectPoint dhcpServer;
-  private List<MacAddress> installedMacs = new ArrayList<>();
-  private List<Intent> installedIntents = new ArrayList<>();
+  private volatile ServerPool servers;
+  private volatile ClientRegistry clients = new ClientRegistry(MAX_CLIENTS);
+  private final Map<Long, List<Intent>> clientIntents = new ConcurrentHashMap<>();
+  private final Map<Long, Long> clientPackets = new ConcurrentHashMap<>();
+  /* Clients sharing each server-to-edge-port intent, guarded by this */
+  private final Map<Key, Set<Long>> serverIntentClients = new HashMap<>();
+  private ScheduledExecutorService expiryExecutor;
+
+  /* Boot storms: client messages are rate limited per port and handled off the packet-in thread. */
+  private final PortAdmission admission = new PortAdmission(PORT_RATE, PORT_BURST);
+  private final AtomicLong rateLimited = new AtomicLong();
+  private final AtomicLong queueFull = new AtomicLong();
+  private long reportedDrops;
+  private ExecutorService workers;
+
+  /* Aggregate mode: one intent pair between the server and every client-facing edge port. */
+  private volatile boolean aggregate;
+  private Set<FilteredConnectPoint> clientPoints = Set.of();
+  private Intent aggregateClientIntent;
+  private Intent aggregateServerIntent;
+  private ConnectPoint aggregateServer;
+
+  /* Relay mode: no intents, every message goes through the controller. */
+  private final DhcpHostProvider hostProvider = new DhcpHostProvider();
+  private final LeaseTable leases = new LeaseTable(MAX_CLIENTS);
+  private HostProviderService hostProviderService;
+  private volatile DhcpRelay relay;
 
   @Activate
   protected void activate() {
@@ -101,9 +190,18 @@ public class AppComponent {
 
     cfgService.addListener(cfgListener);
     cfgService.registerConfigFactory(factory);
+    edgePortService.addListener(edgeListener);
+    deviceService.addListener(deviceListener);
+    hostProviderService = hostProviderRegistry.register(hostProvider);
 
+    workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(WORK_QUEUE_SIZE), groupedThreads("nctu/unicastdhcp", "worker-%d", log),
+        new ThreadPoolExecutor.AbortPolicy());
     packetService.addProcessor(processor, PacketProcessor.director(1));
     requestPackets();
+
+    expiryExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("nctu/unicastdhcp", "expiry", log));
+    expiryExecutor.scheduleAtFixedRate(this::expireClients, EXPIRY_INTERVAL, EXPIRY_INTERVAL, TimeUnit.SECONDS);
     log.info("Started");
   }
 
@@ -111,13 +209,20 @@ public class AppComponent {
   protected void deactivate() {
     cfgService.removeListener(cfgListener);
     cfgService.unregisterConfigFactory(factory);
+    edgePortService.removeListener(edgeListener);
+    deviceService.removeListener(deviceListener);
     packetService.removeProcessor(processor);
     cancelPackets();
+    cancelRelayPackets();
+    expiryExecutor.shutdownNow();
+    workers.shutdownNow();
+    hostProviderRegistry.unregister(hostProvider);
 
-    for (Intent intent : installedIntents) {
-      intentService.withdraw(intent);
-    }
+    withdrawClientIntents();
+    withdrawAggregateIntents();
 
+    log.info("Dropped {} DHCP messages over the port rate, {} with the work queue full",
+        rateLimited.get(), queueFull.get());
     log.info("Stopped");
   }
 
@@ -139,6 +244,25 @@ public class AppComponent {
     packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
   }
 
+  /* Replies from the server to the relay address, server port to server port */
+  private void requestRelayPackets() {
+    TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+      .matchEthType(Ethernet.TYPE_IPV4)
+      .matchIPProtocol(IPv4.PROTOCOL_UDP)
+      .matchUdpDst(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
+      .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT));
+    packetService.requestPackets(selector.build(), PacketPriority.REACTIVE, appId);
+  }
+
+  private void cancelRelayPackets() {
+    TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+      .matchEthType(Ethernet.TYPE_IPV4)
+      .matchIPProtocol(IPv4.PROTOCOL_UDP)
+      .matchUdpDst(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
+      .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT));
+    packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
+  }
+
   private class SrvConfigListener implements NetworkConfigListener {
     @Override
     public void event(NetworkConfigEvent event) {
@@ -151,11 +275,345 @@ public class AppComponent {
 
       SrvConfig config = cfgService.getConfig(appId, SrvConfig.class);
       if (config != null) {
-        dhcpServer = config.srv();
-        log.info("DHCP server is connected to `{}`, port `{}`",
-            dhcpServer.deviceId(), dhcpServer.port());
+        ServerPool pool = new ServerPool(config.servers());
+        for (SrvConfig.Server server : pool.servers()) {
+          pool.setAvailable(server.location(), isUp(server.location()));
+        }
+        servers = pool;
+        log.info("DHCP servers are connected to `{}`", pool.servers());
+
+        aggregate = SrvConfig.MODE_AGGREGATE.equals(config.mode());
+        log.info("Relay mode is `{}`", config.mode());
+        // Intents of either mode lead to the old server location, so start over in both
+        withdrawClientIntents();
+        withdrawAggregateIntents();
+        if (aggregate) {
+          installAggregateIntents();
+        }
+
+        if (SrvConfig.MODE_RELAY.equals(config.mode())) {
+          relay = new DhcpRelay(packetService, hostProviderService, leases, pool, config);
+          requestRelayPackets();
+        } else {
+          relay = null;
+          cancelRelayPackets();
+        }
+      }
+    }
+  }
+
+  private class InternalEdgeListener implements EdgePortListener {
+    @Override
+    public void event(EdgePortEvent event) {
+      if (aggregate) {
+        installAggregateIntents();
+      }
+    }
+  }
+
+  private class InternalDeviceListener implements DeviceListener {
+    @Override
+    public void event(DeviceEvent event) {
+      ServerPool pool = servers;
+      if (pool == null) {
+        return;
+      }
+
+      boolean changed = false;
+      switch (event.type()) {
+        case PORT_ADDED:
+        case PORT_UPDATED:
+        case PORT_REMOVED:
+        case DEVICE_ADDED:
+        case DEVICE_AVAILABILITY_CHANGED:
+        case DEVICE_REMOVED:
+          for (ConnectPoint location : pool.locations()) {
+            if (location.deviceId().equals(event.subject().id())) {
+              changed |= pool.setAvailable(location, isUp(location));
+            }
+          }
+          break;
+        default:
+          break;
+      }
+      if (changed) {
+        log.info("DHCP server availability changed, failing over");
+        failover();
+      }
+    }
+  }
+
+  private boolean isUp(ConnectPoint location) {
+    if (!deviceService.isAvailable(location.deviceId())) {
+      return false;
+    }
+    Port port = deviceService.getPort(location.deviceId(), location.port());
+    return port != null && port.isEnabled();
+  }
+
+  /**
+   * Moves the intents of the clients whose server changed. Clients of the
+   * servers still up keep theirs; in relay mode every message is sent to the
+   * current server anyway.
+   */
+  private synchronized void failover() {
+    if (aggregate) {
+      installAggregateIntents();
+      return;
+    }
+
+    for (Map.Entry<Long, List<Intent>> entry : clientIntents.entrySet()) {
+      PointToPointIntent clientIntent = (PointToPointIntent) entry.getValue().get(0);
+      MacAddress mac = MacAddress.valueOf(entry.getKey());
+      if (!clientIntent.filteredEgressPoint().connectPoint().equals(servers.select(mac).location())) {
+        installClientIntents(mac, clientIntent.filteredIngressPoint().connectPoint());
+      }
+    }
+  }
+
+  /**
+   * Installs one intent from every edge port to the active DHCP server and one
+   * back, replacing the previous pair if the edge ports or the server changed.
+   */
+  private synchronized void installAggregateIntents() {
+    ServerPool pool = servers;
+    if (pool == null) {
+      return;
+    }
+
+    ConnectPoint dhcpServer = pool.active().location();
+    Set<ConnectPoint> locations = pool.locations();
+    Set<FilteredConnectPoint> points = edgePortService.getEdgePoints().stream()
+        .filter(cp -> !locations.contains(cp))
+        .map(FilteredConnectPoint::new)
+        .collect(Collectors.toSet());
+    if (points.isEmpty() || (points.equals(clientPoints) && dhcpServer.equals(aggregateServer)
+        && aggregateClientIntent != null)) {
+      return;
+    }
+
+    // Same keys as the previous pair, so the intents are updated in place
+    aggregateClientIntent = MultiPointToSinglePointIntent.builder()
+      .appId(appId)
+      .key(Key.of("dhcp-clients", appId))
+      .filteredIngressPoints(points)
+      .filteredEgressPoint(new FilteredConnectPoint(dhcpServer))
+      .selector(clientSelector())
+      .priority(DHCP_INTENT_PRIORITY)
+      .build();
+    intentService.submit(aggregateClientIntent);
+
+    aggregateServerIntent = SinglePointToMultiPointIntent.builder()
+      .appId(appId)
+      .key(Key.of("dhcp-server", appId))
+      .filteredIngressPoint(new FilteredConnectPoint(dhcpServer))
+      .filteredEgressPoints(points)
+      .selector(serverSelector())
+      .priority(DHCP_INTENT_PRIORITY)
+      .build();
+    intentService.submit(aggregateServerIntent);
+
+    clientPoints = points;
+    aggregateServer = dhcpServer;
+    log.info("Intents `{}` edge ports <=> `{}`, port `{}` are submitted.",
+        points.size(), dhcpServer.deviceId(), dhcpServer.port());
+  }
+
+  private synchronized void withdrawAggregateIntents() {
+    if (aggregateClientIntent != null) {
+      intentService.withdraw(aggregateClientIntent);
+      intentService.withdraw(aggregateServerIntent);
+    }
+    aggregateClientIntent = null;
+    aggregateServerIntent = null;
+    aggregateServer = null;
+    clientPoints = Set.of();
+  }
+
+  private synchronized void withdrawClientIntents() {
+    clients = new ClientRegistry(MAX_CLIENTS);
+    Map<Key, Intent> serverIntents = new HashMap<>();
+    for (List<Intent> intents : clientIntents.values()) {
+      intentService.withdraw(intents.get(0));
+      serverIntents.put(intents.get(1).key(), intents.get(1));
+    }
+    serverIntents.values().forEach(intentService::withdraw);
+    clientIntents.clear();
+    clientPackets.clear();
+    serverIntentClients.clear();
+  }
+
+  /**
+   * Withdraws the intents of the clients whose lease ran out and that sent
+   * nothing over their intent since the last check. Renewals are unicast and
+   * travel over the intent without being punted, so the packet counters of
+   * its flow rules tell a client still around from one that is gone; an
+   * active client is checked again after the longest lease.
+   */
+  private void expireClients() {
+    long now = System.currentTimeMillis() / 1000;
+    ClientRegistry registry = clients;
+    long[] expired = registry.expire(now);
+    Map<FlowId, Long> flowPackets = expired.length == 0 ? Map.of() : flowPackets();
+    int withdrawn = 0;
+    for (long mac : expired) {
+      List<Intent> intents = clientIntents.get(mac);
+      if (intents == null) {
+        continue;
+      }
+
+      long packets = packets(intents.get(0).key(), flowPackets);
+      Long previous = clientPackets.put(mac, packets);
+      if (packets != (previous == null ? 0 : previous)
+          && registry.register(mac, now, MAX_LEASE_TIME) != ClientRegistry.Registration.FULL) {
+        continue;  // Still active
       }
+      // Unless the client came back and got new intents meanwhile
+      if (clientIntents.remove(mac, intents)) {
+        clientPackets.remove(mac);
+        intentService.withdraw(intents.get(0));
+        releaseServerIntent(mac, intents.get(1));
+        withdrawn++;
+      }
+    }
+    if (withdrawn > 0) {
+      log.info("{} DHCP clients expired, {} still registered", withdrawn, registry.size());
+    }
+
+    for (LeaseTable.Lease lease : leases.expire(System.currentTimeMillis())) {
+      hostProviderService.removeIpFromHost(HostId.hostId(lease.mac(), lease.vlan()), lease.ip());
+      log.info("Lease expired: {}", lease);
     }
+
+    long drops = rateLimited.get() + queueFull.get();
+    if (drops > reportedDrops) {
+      log.warn("{} DHCP messages dropped by admission control in the last {}s ({} over the port rate, {} queue full)",
+          drops - reportedDrops, EXPIRY_INTERVAL, rateLimited.get(), queueFull.get());
+      reportedDrops = drops;
+    }
+  }
+
+  private Map<FlowId, Long> flowPackets() {
+    Map<FlowId, Long> packets = new HashMap<>();
+    for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+      packets.put(entry.id(), entry.packets());
+    }
+    return packets;
+  }
+
+  /* Packets matched by the flow rules an intent was compiled to */
+  private long packets(Key key, Map<FlowId, Long> flowPackets) {
+    long packets = 0;
+    for (Intent intent : intentService.getInstallableIntents(key)) {
+      if (intent instanceof FlowRuleIntent) {
+        for (FlowRule rule : ((FlowRuleIntent) intent).flowRules()) {
+          packets += flowPackets.getOrDefault(rule.id(), 0L);
+        }
+      }
+    }
+    return packets;
+  }
+
+  /**
+   * Installs the intents between a client and its DHCP server, updating them
+   * in place if the client already has some. The intent back from the server
+   * is shared with the other clients on the same edge port.
+   *
+   * @param mac client MAC address
+   * @param cp edge connect point of the client
+   */
+  private void installClientIntents(MacAddress mac, ConnectPoint cp) {
+    ConnectPoint dhcpServer = servers.select(mac).location();
+
+    /* clientIntent: cp -> dhcpServer */
+    PointToPointIntent clientIntent = PointToPointIntent.builder()
+      .key(Key.of(mac + "/client", appId))
+      .filteredIngressPoint(new FilteredConnectPoint(cp))
+      .filteredEgressPoint(new FilteredConnectPoint(dhcpServer))
+      .selector(clientSelector(mac))
+      .priority(DHCP_INTENT_PRIORITY)
+      .appId(appId)
+      .build();
+    intentService.submit(clientIntent);
+    log.debug("Intent `{}`, port `{}` => `{}`, port `{}` is submitted.",  // cp -> dhcpServer
+      cp.deviceId(), cp.port(), dhcpServer.deviceId(), dhcpServer.port());
+
+    /* serverIntent: dhcpServer -> cp */
+    Intent serverIntent = acquireServerIntent(mac.toLong(), dhcpServer, cp);
+
+    List<Intent> previous = clientIntents.put(mac.toLong(), Arrays.asList(clientIntent, serverIntent));
+    if (previous != null && !previous.get(1).key().equals(serverIntent.key())) {
+      releaseServerIntent(mac.toLong(), previous.get(1));
+    }
+  }
+
+  /**
+   * Adds a client to the intent from its server to its edge port, submitting
+   * the intent for the first client. Replies may be broadcast and match no
+   * client MAC address, so per-client intents would compile to the same flow
+   * rules, and withdrawing one client's would cut the others off.
+   *
+   * @param mac client MAC address
+   * @param dhcpServer connect point of the client's server
+   * @param cp edge connect point of the client
+   * @return the shared intent
+   */
+  private synchronized Intent acquireServerIntent(long mac, ConnectPoint dhcpServer, ConnectPoint cp) {
+    PointToPointIntent serverIntent = PointToPointIntent.builder()
+      .key(Key.of(dhcpServer + "/" + cp + "/server", appId))
+      .filteredIngressPoint(new FilteredConnectPoint(dhcpServer))
+      .filteredEgressPoint(new FilteredConnectPoint(cp))
+      .selector(serverSelector())
+      .priority(DHCP_INTENT_PRIORITY)
+      .appId(appId)
+      .build();
+    Set<Long> macs = serverIntentClients.get(serverIntent.key());
+    if (macs == null) {
+      macs = new HashSet<>();
+      serverIntentClients.put(serverIntent.key(), macs);
+      intentService.submit(serverIntent);
+      log.debug("Intent `{}`, port `{}` => `{}`, port `{}` is submitted.",  // dhcpServer -> cp
+        dhcpServer.deviceId(), dhcpServer.port(), cp.deviceId(), cp.port());
+    }
+    macs.add(mac);
+    return serverIntent;
+  }
+
+  /**
+   * Removes a client from a shared server intent, withdrawing the intent once
+   * no client on the edge port uses it.
+   */
+  private synchronized void releaseServerIntent(long mac, Intent serverIntent) {
+    Set<Long> macs = serverIntentClients.get(serverIntent.key());
+    if (macs != null && macs.remove(mac) && macs.isEmpty()) {
+      serverIntentClients.remove(serverIntent.key());
+      intentService.withdraw(serverIntent);
+    }
+  }
+
+  private TrafficSelector clientSelector() {
+    return DefaultTrafficSelector.builder()
+      .matchEthType(Ethernet.TYPE_IPV4)
+      .matchIPProtocol(IPv4.PROTOCOL_UDP)
+      .matchUdpSrc(TpPort.tpPort(UDP.DHCP_CLIENT_PORT))
+      .matchUdpDst(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
+      .build();
+  }
+
+  /* Clients on the same edge port may be served by different servers */
+  private TrafficSelector clientSelector(MacAddress mac) {
+    return DefaultTrafficSelector.builder(clientSelector())
+      .matchEthSrc(mac)
+      .build();
+  }
+
+  private TrafficSelector serverSelector() {
+    return DefaultTrafficSelector.builder()
+      .matchEthType(Ethernet.TYPE_IPV4)
+      .matchIPProtocol(IPv4.PROTOCOL_UDP)
+      .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
+      .matchUdpDst(TpPort.tpPort(UDP.DHCP_CLIENT_PORT))
+      .build();
   }
 
 
@@ -177,7 +635,7 @@ public class AppComponent {
         return;
       }
 
-      log.info("processDhcpPacket(dhcpPayload={})", dhcpPayload);
+      log.debug("processDhcpPacket(dhcpPayload={})", dhcpPayload);
 
       Ethernet packet = context.inPacket().parsed();
       DHCP.MsgType incomingPacketType = null;
@@ -185,24 +643,28 @@ public class AppComponent {
       boolean flagIfServerIP = false;
       Ip4Address requestedIP = Ip4Address.valueOf("0.0.0.0");
       Ip4Address serverIP = Ip4Address.valueOf("0.0.0.0");
+      long leaseTime = MAX_LEASE_TIME;
 
       for (DhcpOption option : dhcpPayload.getOptions()) {
         if (option.getCode() == OptionCode_MessageType.getValue()) {
           byte[] data = option.getData();
           incomingPacketType = DHCP.MsgType.getType(data[0]);
-          log.info("data = {}", data);
+          log.debug("data = {}", data);
         }
         if (option.getCode() == OptionCode_RequestedIP.getValue()) {
           byte[] data = option.getData();
           requestedIP = Ip4Address.valueOf(data);
           flagIfRequestedIP = true;
-          log.info("requestedIP = {}", requestedIP);
+          log.debug("requestedIP = {}", requestedIP);
         }
         if (option.getCode() == OptionCode_DHCPServerIp.getValue()) {
           byte[] data = option.getData();
           serverIP = Ip4Address.valueOf(data);
           flagIfServerIP = true;
-          log.info("serverIP = {}", serverIP);
+          log.debug("serverIP = {}", serverIP);
+        }
+        if (option.getCode() == OptionCode_LeaseTime.getValue() && option.getData().length == 4) {
+          leaseTime = Math.min(ByteBuffer.wrap(option.getData()).getInt() & 0xffffffffL, MAX_LEASE_TIME);
         }
       }
 
@@ -218,55 +680,38 @@ public class AppComponent {
 
       /* New code */
 
-      log.info("incomingPacketType = {}", incomingPacketType);
+      log.debug("incomingPacketType = {}", incomingPacketType);
+      DhcpRelay agent = relay;
+      if (agent != null) {
+        agent.relayRequest(context.inPacket().receivedFrom(), dhcpPayload);
+        return;
+      }
+
       if (incomingPacketType != MsgType.DHCPDISCOVER && incomingPacketType != MsgType.DHCPREQUEST) {
         return;
       }
 
-      if (installedMacs.contains(packet.getSourceMAC())) {
-        return;  // Already installed
+      if (aggregate) {
+        // Edge ports discovered after the intents were built are picked up here
+        installAggregateIntents();
+        return;
       }
-      installedMacs.add(packet.getSourceMAC());
-
-      ConnectPoint cp = context.inPacket().receivedFrom();
-
-      TrafficSelector.Builder clientSelector = DefaultTrafficSelector.builder()
-        .matchEthType(Ethernet.TYPE_IPV4)
-        .matchIPProtocol(IPv4.PROTOCOL_UDP)
-        .matchUdpSrc(TpPort.tpPort(UDP.DHCP_CLIENT_PORT))
-        .matchUdpDst(TpPort.tpPort(UDP.DHCP_SERVER_PORT));
-
-      TrafficSelector.Builder serverSelector = DefaultTrafficSelector.builder()
-        .matchEthType(Ethernet.TYPE_IPV4)
-        .matchIPProtocol(IPv4.PROTOCOL_UDP)
-        .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
-        .matchUdpDst(TpPort.tpPort(UDP.DHCP_CLIENT_PORT));
-
-      /* clientIntent: cp -> dhcpServer */
-      PointToPointIntent clientIntent = PointToPointIntent.builder()
-        .filteredIngressPoint(new FilteredConnectPoint(cp))
-        .filteredEgressPoint(new FilteredConnectPoint(dhcpServer))
-        .selector(clientSelector.build())
-        .priority(42)
-        .appId(appId)
-        .build();
-      intentService.submit(clientIntent);
-      installedIntents.add(clientIntent);
-      log.info("Intent `{}`, port `{}` => `{}`, port `{}` is submitted.",  // cp -> dhcpServer
-        cp.deviceId(), cp.port(), dhcpServer.deviceId(), dhcpServer.port());
-
-      /* serverIntent: dhcpServer -> cp */
-      PointToPointIntent serverIntent = PointToPointIntent.builder()
-        .filteredIngressPoint(new FilteredConnectPoint(dhcpServer))
-        .filteredEgressPoint(new FilteredConnectPoint(cp))
-        .selector(serverSelector.build())
-        .priority(42)
-        .appId(appId)
-        .build();
-      intentService.submit(serverIntent);
-      installedIntents.add(serverIntent);
-      log.info("Intent `{}`, port `{}` => `{}`, port `{}` is submitted.",  // dhcpServer -> cp
-        dhcpServer.deviceId(), dhcpServer.port(), cp.deviceId(), cp.port());
+      if (servers == null) {
+        return;  // Not configured yet
+      }
+
+      long srcMac = packet.getSourceMAC().toLong();
+      switch (clients.register(srcMac, System.currentTimeMillis() / 1000, leaseTime)) {
+        case REFRESHED:
+          return;  // Already installed
+        case FULL:
+          log.warn("Client registry is full, not relaying for `{}`", packet.getSourceMAC());
+          return;
+        default:
+          break;
+      }
+
+      installClientIntents(packet.getSourceMAC(), context.inPacket().receivedFrom());
     }
 
     @Override
@@ -289,10 +734,49 @@ public class AppComponent {
       if (udpPacket.getDestinationPort() == UDP.DHCP_SERVER_PORT &&
           udpPacket.getSourcePort() == UDP.DHCP_CLIENT_PORT) {
         // This is meant for the dhcp server so process the packet here.
+        if (relay != null) {
+          context.block();  // Relayed by the worker, never forwarded as is
+        }
+        if (!admission.admit(context.inPacket().receivedFrom(), System.nanoTime())) {
+          rateLimited.incrementAndGet();
+          return;
+        }
 
         DHCP dhcpPayload = (DHCP) udpPacket.getPayload();
-        processDhcpPacket(context, dhcpPayload);
+        submit(() -> processDhcpPacket(context, dhcpPayload));
       }
+
+      DhcpRelay agent = relay;
+      if (agent != null && udpPacket.getDestinationPort() == UDP.DHCP_SERVER_PORT &&
+          udpPacket.getSourcePort() == UDP.DHCP_SERVER_PORT) {
+        // Reply from the server to the relay address, not rate limited as the server paces itself
+        context.block();
+        DHCP dhcpPayload = (DHCP) udpPacket.getPayload();
+        submit(() -> agent.relayReply(dhcpPayload));
+      }
+    }
+
+    private void submit(Runnable task) {
+      try {
+        workers.execute(task);
+      } catch (RejectedExecutionException e) {
+        queueFull.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Reports the clients leased through the relay, so their location is
+   * known before they send any traffic.
+   */
+  private static class DhcpHostProvider extends AbstractProvider implements HostProvider {
+    DhcpHostProvider() {
+      super(new ProviderId("dhcp", "nctu.winlab.unicastdhcp"));
+    }
+
+    @Override
+    public void triggerProbe(Host host) {
+      // Clients are only learned from the leases
     }
   }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, bounded registry of DHCP clients keyed by MAC address.
+ * <p>
+ * Clients live in a fixed open-addressing table over two atomic long arrays,
+ * one with the MAC address plus a presence bit and one with the lease expiry
+ * in seconds. Slots are claimed with compare-and-set and never emptied again.
+ * A client whose lease ran out stays registered until {@link #expire} reports
+ * it, so the caller gets to clean up after every client exactly once; only
+ * then is its slot handed to the next new client on the same probe chain.
+ * <p>
+ * The capacity bounds the clients not reported yet. The table is sized at
+ * twice the capacity and probes at most {@value #MAX_PROBE} slots, so lookups
+ * stay O(1) however many clients came and went.
+ */
+public class ClientRegistry {
+
+  /** Outcome of registering a client. */
+  public enum Registration {
+    /** The client is new or was reported expired. */
+    ADDED,
+    /** The client was registered already and its lease was extended. */
+    REFRESHED,
+    /** The registry is full of clients not reported expired yet. */
+    FULL
+  }
+
+  static final int MAX_PROBE = 64;
+
+  private static final long PRESENT = 1L << 48;
+  /* Expiry of a slot being written, or of an empty slot */
+  private static final long CLAIMING = 0;
+  /* Expiry of a client reported by expire(), its slot may be reused */
+  private static final long REPORTED = -1;
+
+  private final AtomicLongArray keys;
+  private final AtomicLongArray expiries;
+  private final AtomicInteger live = new AtomicInteger();
+  private final int mask;
+  private final int probes;
+  private final int capacity;
+
+  /**
+   * Creates an empty registry.
+   *
+   * @param capacity maximum number of clients
+   */
+  public ClientRegistry(int capacity) {
+    int slots = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+    this.keys = new AtomicLongArray(slots);
+    this.expiries = new AtomicLongArray(slots);
+    this.mask = slots - 1;
+    this.probes = Math.min(slots, MAX_PROBE);
+    this.capacity = capacity;
+  }
+
+  /**
+   * Registers a client or extends its lease.
+   *
+   * @param mac MAC address as long
+   * @param now current time in seconds
+   * @param lease lease time in seconds
+   * @return whether the client was added, refreshed or did not fit
+   */
+  public Registration register(long mac, long now, long lease) {
+    long key = mac | PRESENT;
+    long expiry = Math.max(now + lease, 1);
+
+    retry:
+    for (;;) {
+      int reuse = -1;
+      int empty = -1;
+      for (int n = 0, i = index(key); n < probes; n++, i = (i + 1) & mask) {
+        long k = keys.get(i);
+        long e = expiries.get(i);
+        if (k == key) {
+          if (e == CLAIMING) {
+            Thread.onSpinWait();  // Being added by another thread
+            continue retry;
+          }
+          if (e == REPORTED) {
+            reuse = i;  // Back after being reported, take its own slot again
+            break;
+          }
+          if (expiries.compareAndSet(i, e, Math.max(e, expiry))) {
+            return Registration.REFRESHED;
+          }
+          continue retry;
+        }
+        if (k == 0) {
+          empty = i;
+          break;
+        }
+        if (reuse < 0 && e == REPORTED) {
+          reuse = i;
+        }
+      }
+      if (reuse < 0 && empty < 0) {
+        return Registration.FULL;  // Probe window full of live clients
+      }
+
+      if (live.incrementAndGet() > capacity) {
+        live.decrementAndGet();
+        return Registration.FULL;
+      }
+      if (reuse >= 0 && expiries.compareAndSet(reuse, REPORTED, CLAIMING)) {
+        keys.set(reuse, key);
+        expiries.set(reuse, expiry);
+        return Registration.ADDED;
+      }
+      if (reuse < 0 && keys.compareAndSet(empty, 0, key)) {
+        expiries.set(empty, expiry);
+        return Registration.ADDED;
+      }
+      // Another client took the slot, probe again from the start
+      live.decrementAndGet();
+    }
+  }
+
+  /**
+   * Checks whether a client holds a live lease.
+   *
+   * @param mac MAC address as long
+   * @param now current time in seconds
+   * @return true if registered and not expired
+   */
+  public boolean contains(long mac, long now) {
+    long key = mac | PRESENT;
+    for (int n = 0, i = index(key); n < probes; n++, i = (i + 1) & mask) {
+      long k = keys.get(i);
+      if (k == key) {
+        return expiries.get(i) > now;
+      }
+      if (k == 0) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Collects the clients whose lease expired since the last call. Each
+   * expired client is reported once and frees its place in the registry.
+   *
+   * @param now current time in seconds
+   * @return MAC addresses as long
+   */
+  public long[] expire(long now) {
+    long[] expired = new long[16];
+    int count = 0;
+    for (int i = 0; i <= mask; i++) {
+      long key = keys.get(i);
+      long expiry = expiries.get(i);
+      if (key != 0 && expiry > CLAIMING && expiry <= now && expiries.compareAndSet(i, expiry, REPORTED)) {
+        live.decrementAndGet();
+        if (count == expired.length) {
+          expired = Arrays.copyOf(expired, count * 2);
+        }
+        expired[count++] = key & ~PRESENT;
+      }
+    }
+    return Arrays.copyOf(expired, count);
+  }
+
+  /**
+   * Returns the number of clients not reported expired yet.
+   *
+   * @return number of registered clients
+   */
+  public int size() {
+    return live.get();
+  }
+
+  private int index(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+}
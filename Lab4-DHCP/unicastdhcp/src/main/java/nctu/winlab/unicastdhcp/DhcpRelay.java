@@ -0,0 +1,274 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_CircuitID;
+import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_END;
+import static org.onlab.packet.DHCP.DHCPOptionCode.OptionCode_LeaseTime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.onlab.packet.DHCP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.UDP;
+import org.onlab.packet.VlanId;
+import org.onlab.packet.dhcp.DhcpOption;
+import org.onlab.packet.dhcp.DhcpRelayAgentOption;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHostDescription;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.host.HostProviderService;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.PacketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DHCP relay agent run in the controller.
+ * <p>
+ * Client messages punted at the edge are sent to the client's server in the
+ * pool as unicasts from the relay address, with the relay address as giaddr and the ingress connect
+ * point as the circuit ID of the relay agent information option (82). The
+ * server echoes the option back, so replies are sent straight out of the
+ * client's edge port without any per-client state in the data plane. ACKs are
+ * recorded in the lease table and reported as host locations.
+ */
+public class DhcpRelay {
+
+  private static final byte CIRCUIT_ID = 1;
+  private static final int MAX_HOPS = 16;
+  private static final short BROADCAST_FLAG = (short) 0x8000;
+  private static final long DEFAULT_LEASE_TIME = 600;
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final PacketService packetService;
+  private final HostProviderService hostProviderService;
+  private final LeaseTable leases;
+
+  private final ServerPool servers;
+  private final Ip4Address relayIp;
+  private final MacAddress relayMac;
+
+  /**
+   * Creates a relay agent.
+   *
+   * @param packetService packet service
+   * @param hostProviderService host provider service to report leases to, may be null
+   * @param leases lease table
+   * @param servers servers to relay to
+   * @param config relay addresses
+   */
+  public DhcpRelay(PacketService packetService, HostProviderService hostProviderService,
+      LeaseTable leases, ServerPool servers, SrvConfig config) {
+    this.packetService = packetService;
+    this.hostProviderService = hostProviderService;
+    this.leases = leases;
+    this.servers = servers;
+    this.relayIp = config.relayIp();
+    this.relayMac = config.relayMac();
+  }
+
+  /**
+   * Relays a message from a client to its server.
+   *
+   * @param ingress edge connect point of the client
+   * @param dhcp client message
+   */
+  public void relayRequest(ConnectPoint ingress, DHCP dhcp) {
+    if (dhcp.getHops() >= MAX_HOPS) {
+      log.debug("Dropping DHCP message from `{}` after {} hops", ingress, dhcp.getHops());
+      return;
+    }
+    dhcp.setHops((byte) (dhcp.getHops() + 1));
+    if (dhcp.getGatewayIPAddress() == 0) {
+      dhcp.setGatewayIPAddress(relayIp.toInt());
+    }
+
+    // Option 82 from a client cannot be trusted, the relay sets its own
+    List<DhcpOption> options = new ArrayList<>(dhcp.getOptions());
+    options.removeIf(option -> option.getCode() == OptionCode_CircuitID.getValue());
+    int end = options.size();
+    for (int i = 0; i < options.size(); i++) {
+      if (options.get(i).getCode() == OptionCode_END.getValue()) {
+        end = i;
+        break;
+      }
+    }
+    options.add(end, agentOption(ingress));
+    dhcp.setOptions(options);
+
+    MacAddress clientMac = MacAddress.valueOf(dhcp.getClientHardwareAddress());
+    if (dhcp.getPacketType() == DHCP.MsgType.DHCPRELEASE) {
+      leases.remove(clientMac);
+    }
+
+    SrvConfig.Server server = servers.select(clientMac);
+    emit(server.location(), build(dhcp, relayMac, server.mac(), relayIp, server.ip(), UDP.DHCP_SERVER_PORT));
+    log.debug("Relayed {} from `{}` to `{}`", dhcp.getPacketType(), ingress, server);
+  }
+
+  /**
+   * Relays a reply from the server back to the client named by its circuit ID.
+   *
+   * @param dhcp server message
+   */
+  public void relayReply(DHCP dhcp) {
+    if (dhcp.getGatewayIPAddress() != relayIp.toInt()) {
+      return;  // Relayed by someone else
+    }
+
+    DhcpOption agentOption = dhcp.getOption(OptionCode_CircuitID);
+    ConnectPoint cp = agentOption == null ? null : circuit(agentOption);
+    if (cp == null) {
+      log.warn("DHCP reply without a valid circuit ID, dropped");
+      return;
+    }
+
+    List<DhcpOption> options = new ArrayList<>(dhcp.getOptions());
+    options.removeIf(option -> option.getCode() == OptionCode_CircuitID.getValue());
+    dhcp.setOptions(options);
+
+    MacAddress clientMac = MacAddress.valueOf(dhcp.getClientHardwareAddress());
+    Ip4Address yourIp = Ip4Address.valueOf(dhcp.getYourIPAddress());
+    if (dhcp.getPacketType() == DHCP.MsgType.DHCPACK && !yourIp.isZero()) {
+      learn(clientMac, yourIp, cp, leaseTime(dhcp));
+    } else if (dhcp.getPacketType() == DHCP.MsgType.DHCPNAK) {
+      leases.remove(clientMac);
+    }
+
+    boolean broadcast = (dhcp.getFlags() & BROADCAST_FLAG) != 0 || yourIp.isZero();
+    Ethernet reply = build(dhcp, relayMac, broadcast ? MacAddress.BROADCAST : clientMac,
+        relayIp, broadcast ? Ip4Address.valueOf("255.255.255.255") : yourIp, UDP.DHCP_CLIENT_PORT);
+    emit(cp, reply);
+    log.debug("Relayed {} for `{}` to `{}`", dhcp.getPacketType(), clientMac, cp);
+  }
+
+  private void learn(MacAddress mac, Ip4Address ip, ConnectPoint cp, long leaseTime) {
+    long now = System.currentTimeMillis();
+    LeaseTable.Lease lease = new LeaseTable.Lease(mac, VlanId.NONE, ip, cp, now + leaseTime * 1000);
+    List<LeaseTable.Lease> evicted = leases.learn(lease, now);
+    if (evicted == null) {
+      // The client still gets its address, it is just not tracked as a host
+      log.warn("Lease table is full, {} not recorded", lease);
+      return;
+    }
+    log.debug("Lease {}", lease);
+
+    if (hostProviderService != null) {
+      for (LeaseTable.Lease expired : evicted) {
+        hostProviderService.removeIpFromHost(HostId.hostId(expired.mac(), expired.vlan()), expired.ip());
+        log.info("Lease expired: {}", expired);
+      }
+      HostLocation location = new HostLocation(cp, System.currentTimeMillis());
+      hostProviderService.hostDetected(HostId.hostId(mac, VlanId.NONE),
+          new DefaultHostDescription(mac, VlanId.NONE, location, ip), false);
+    }
+  }
+
+  private long leaseTime(DHCP dhcp) {
+    DhcpOption option = dhcp.getOption(OptionCode_LeaseTime);
+    if (option == null || option.getData().length != 4) {
+      return DEFAULT_LEASE_TIME;
+    }
+    return ByteBuffer.wrap(option.getData()).getInt() & 0xffffffffL;
+  }
+
+  private Ethernet build(DHCP dhcp, MacAddress srcMac, MacAddress dstMac,
+      Ip4Address srcIp, Ip4Address dstIp, int dstPort) {
+    UDP udp = new UDP();
+    udp.setSourcePort(UDP.DHCP_SERVER_PORT);
+    udp.setDestinationPort(dstPort);
+    udp.setPayload(dhcp);
+
+    IPv4 ip = new IPv4();
+    ip.setSourceAddress(srcIp.toInt());
+    ip.setDestinationAddress(dstIp.toInt());
+    ip.setProtocol(IPv4.PROTOCOL_UDP);
+    ip.setTtl((byte) 64);
+    ip.setPayload(udp);
+
+    Ethernet eth = new Ethernet();
+    eth.setSourceMACAddress(srcMac);
+    eth.setDestinationMACAddress(dstMac);
+    eth.setEtherType(Ethernet.TYPE_IPV4);
+    eth.setPayload(ip);
+    return eth;
+  }
+
+  private void emit(ConnectPoint cp, Ethernet eth) {
+    TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+    packetService.emit(new DefaultOutboundPacket(cp.deviceId(), treatment, ByteBuffer.wrap(eth.serialize())));
+  }
+
+  /**
+   * Builds the relay agent information option carrying the connect point.
+   */
+  private static DhcpOption agentOption(ConnectPoint cp) {
+    byte[] circuit = cp.toString().getBytes(StandardCharsets.US_ASCII);
+    byte[] data = new byte[circuit.length + 2];
+    data[0] = CIRCUIT_ID;
+    data[1] = (byte) circuit.length;
+    System.arraycopy(circuit, 0, data, 2, circuit.length);
+
+    DhcpOption option = new DhcpOption();
+    option.setCode(OptionCode_CircuitID.getValue());
+    option.setLength((byte) data.length);
+    option.setData(data);
+    return option;
+  }
+
+  /**
+   * Parses the connect point out of the circuit ID of a relay agent option.
+   *
+   * @return connect point, or null if the option carries none
+   */
+  private static ConnectPoint circuit(DhcpOption option) {
+    byte[] circuit = null;
+    if (option instanceof DhcpRelayAgentOption) {
+      DhcpOption sub = ((DhcpRelayAgentOption) option).getSubOption(CIRCUIT_ID);
+      circuit = sub == null ? null : sub.getData();
+    } else {
+      byte[] data = option.getData();
+      for (int i = 0; data != null && i + 1 < data.length; i += 2 + (data[i + 1] & 0xff)) {
+        int length = data[i + 1] & 0xff;
+        if (data[i] == CIRCUIT_ID && i + 2 + length <= data.length) {
+          circuit = Arrays.copyOfRange(data, i + 2, i + 2 + length);
+          break;
+        }
+      }
+    }
+    if (circuit == null) {
+      return null;
+    }
+
+    try {
+      return ConnectPoint.deviceConnectPoint(new String(circuit, StandardCharsets.US_ASCII));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+
+/**
+ * Leases handed out through the relay, learned from the server's ACKs. The
+ * table holds at most the given number of clients; leases that ran out are
+ * evicted to make room for new ones.
+ */
+public class LeaseTable {
+
+  private final Map<MacAddress, Lease> leases = new ConcurrentHashMap<>();
+  private final int capacity;
+
+  /**
+   * Creates a lease table.
+   *
+   * @param capacity maximum number of clients
+   */
+  public LeaseTable(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Records a lease, replacing the previous lease of the client. A new client
+   * is not recorded while the table is full of leases that have not run out.
+   *
+   * @param lease lease
+   * @param now current time in milliseconds
+   * @return leases that ran out and were evicted to make room, or null if the
+   *         table is full and the lease was not recorded
+   */
+  public synchronized List<Lease> learn(Lease lease, long now) {
+    List<Lease> evicted = List.of();
+    if (leases.size() >= capacity && !leases.containsKey(lease.mac())) {
+      evicted = expire(now);
+      if (evicted.isEmpty()) {
+        return null;
+      }
+    }
+    leases.put(lease.mac(), lease);
+    return evicted;
+  }
+
+  public Lease get(MacAddress mac) {
+    return leases.get(mac);
+  }
+
+  public Lease remove(MacAddress mac) {
+    return leases.remove(mac);
+  }
+
+  /**
+   * Removes the leases that ran out.
+   *
+   * @param now current time in milliseconds
+   * @return expired leases
+   */
+  public List<Lease> expire(long now) {
+    List<Lease> expired = new ArrayList<>();
+    Iterator<Lease> it = leases.values().iterator();
+    while (it.hasNext()) {
+      Lease lease = it.next();
+      if (lease.expiry() <= now) {
+        it.remove();
+        expired.add(lease);
+      }
+    }
+    return expired;
+  }
+
+  public int size() {
+    return leases.size();
+  }
+
+  /**
+   * Address leased to a client and where the client is attached.
+   */
+  public static final class Lease {
+    private final MacAddress mac;
+    private final VlanId vlan;
+    private final Ip4Address ip;
+    private final ConnectPoint location;
+    private final long expiry;
+
+    /**
+     * Creates a lease.
+     *
+     * @param mac client MAC address
+     * @param vlan client VLAN
+     * @param ip leased IP address
+     * @param location edge connect point of the client
+     * @param expiry expiry time in milliseconds
+     */
+    public Lease(MacAddress mac, VlanId vlan, Ip4Address ip, ConnectPoint location, long expiry) {
+      this.mac = mac;
+      this.vlan = vlan;
+      this.ip = ip;
+      this.location = location;
+      this.expiry = expiry;
+    }
+
+    public MacAddress mac() {
+      return mac;
+    }
+
+    public VlanId vlan() {
+      return vlan;
+    }
+
+    public Ip4Address ip() {
+      return ip;
+    }
+
+    public ConnectPoint location() {
+      return location;
+    }
+
+    public long expiry() {
+      return expiry;
+    }
+
+    @Override
+    public String toString() {
+      return mac + "/" + vlan + " => " + ip + " on " + location;
+    }
+  }
+}
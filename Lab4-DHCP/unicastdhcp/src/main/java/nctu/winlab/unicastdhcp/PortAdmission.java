@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.onosproject.net.ConnectPoint;
+
+/**
+ * Per-port token buckets bounding how many DHCP messages each edge port may
+ * hand to the controller. A storm behind one port uses up its own bucket and
+ * leaves the others alone.
+ */
+public class PortAdmission {
+
+  private final Map<ConnectPoint, Bucket> buckets = new ConcurrentHashMap<>();
+  private final double ratePerNano;
+  private final double burst;
+
+  /**
+   * Creates the admission stage.
+   *
+   * @param rate messages per second admitted per port
+   * @param burst messages admitted at once on a port that was idle
+   */
+  public PortAdmission(double rate, int burst) {
+    this.ratePerNano = rate / 1e9;
+    this.burst = burst;
+  }
+
+  /**
+   * Takes a token from the bucket of a port.
+   *
+   * @param cp ingress connect point
+   * @param now current time in nanoseconds
+   * @return true if the message is admitted
+   */
+  public boolean admit(ConnectPoint cp, long now) {
+    return buckets.computeIfAbsent(cp, k -> new Bucket(burst, now)).take(now, ratePerNano, burst);
+  }
+
+  private static final class Bucket {
+    private double tokens;
+    private long last;
+
+    private Bucket(double tokens, long last) {
+      this.tokens = tokens;
+      this.last = last;
+    }
+
+    private synchronized boolean take(long now, double rate, double burst) {
+      tokens = Math.min(burst, tokens + Math.max(now - last, 0) * rate);
+      last = now;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens -= 1;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+/**
+ * DHCP servers to spread clients over.
+ * <p>
+ * Clients are assigned by rendezvous hashing of their MAC address over the
+ * servers whose port is up, so a server going down only moves its own clients
+ * and coming back only takes them back. When no server is known to be up,
+ * every server is a candidate.
+ */
+public class ServerPool {
+
+  private final List<SrvConfig.Server> servers;
+  private final Set<ConnectPoint> down = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates a pool with every server up.
+   *
+   * @param servers servers in order of preference
+   */
+  public ServerPool(List<SrvConfig.Server> servers) {
+    this.servers = List.copyOf(servers);
+  }
+
+  public List<SrvConfig.Server> servers() {
+    return servers;
+  }
+
+  /**
+   * Returns the locations of all servers, up or not.
+   *
+   * @return server connect points
+   */
+  public Set<ConnectPoint> locations() {
+    return servers.stream().map(SrvConfig.Server::location).collect(Collectors.toSet());
+  }
+
+  /**
+   * Marks a server port up or down.
+   *
+   * @param location server connect point
+   * @param up whether the port is usable
+   * @return true if a server changed state
+   */
+  public boolean setAvailable(ConnectPoint location, boolean up) {
+    if (servers.stream().noneMatch(server -> server.location().equals(location))) {
+      return false;
+    }
+    return up ? down.remove(location) : down.add(location);
+  }
+
+  /**
+   * Picks the server of a client.
+   *
+   * @param mac client MAC address
+   * @return server
+   */
+  public SrvConfig.Server select(MacAddress mac) {
+    SrvConfig.Server best = null;
+    long bestWeight = 0;
+    for (SrvConfig.Server server : candidates()) {
+      long weight = weight(mac.toLong(), server);
+      if (best == null || Long.compareUnsigned(weight, bestWeight) > 0) {
+        best = server;
+        bestWeight = weight;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Picks the first server that is up, the others standing by.
+   *
+   * @return active server
+   */
+  public SrvConfig.Server active() {
+    return candidates().get(0);
+  }
+
+  private List<SrvConfig.Server> candidates() {
+    List<SrvConfig.Server> up = servers.stream()
+        .filter(server -> !down.contains(server.location()))
+        .collect(Collectors.toList());
+    return up.isEmpty() ? servers : up;
+  }
+
+  private static long weight(long mac, SrvConfig.Server server) {
+    long h = mac * 0x9E3779B97F4A7C15L;
+    for (byte b : server.location().toString().getBytes(StandardCharsets.US_ASCII)) {
+      h = (h ^ b) * 0x100000001B3L;
+    }
+    // 64-bit finalizer of MurmurHash3
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+}
@@ -15,6 +15,16 @@
  */
 package nctu.winlab.unicastdhcp;
 
+import static org.onosproject.net.config.Config.FieldPresence.MANDATORY;
+import static org.onosproject.net.config.Config.FieldPresence.OPTIONAL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.config.Config;
 import org.onosproject.net.ConnectPoint;
@@ -23,17 +33,129 @@ public class SrvConfig extends Config<ApplicationId> {
 
   public static final String SRV_LOC = "serverLocation";
   public static final String CLI_LOC = "clientLocation";
+  public static final String MODE = "mode";
+  public static final String SERVER_IP = "serverIp";
+  public static final String SERVER_MAC = "serverMac";
+  public static final String RELAY_IP = "relayIp";
+  public static final String RELAY_MAC = "relayMac";
+  /** List of servers, each with a location and, for relay mode, ip and optionally mac. */
+  public static final String SERVERS = "servers";
+  public static final String LOCATION = "location";
+  public static final String IP = "ip";
+  public static final String MAC = "mac";
+
+  /** One intent pair per client MAC address. */
+  public static final String MODE_PER_CLIENT = "per-client";
+  /** One intent pair covering every edge port, regardless of the number of clients. */
+  public static final String MODE_AGGREGATE = "aggregate";
+  /** No intents, the controller relays every message with option 82 and tracks the leases. */
+  public static final String MODE_RELAY = "relay";
 
   @Override
   public boolean isValid() {
-    return hasOnlyFields(SRV_LOC, CLI_LOC);
+    if (!hasOnlyFields(SRV_LOC, CLI_LOC, MODE, SERVER_IP, SERVER_MAC, RELAY_IP, RELAY_MAC, SERVERS)) {
+      return false;
+    }
+    boolean relay = MODE_RELAY.equals(mode());
+    if (!relay && !MODE_PER_CLIENT.equals(mode()) && !MODE_AGGREGATE.equals(mode())) {
+      return false;
+    }
+    if (relay && !(isIpAddress(RELAY_IP, MANDATORY) && isMacAddress(RELAY_MAC, MANDATORY))) {
+      return false;
+    }
+
+    JsonNode servers = object.path(SERVERS);
+    if (servers.isMissingNode()) {
+      return isConnectPoint(SRV_LOC, MANDATORY)
+          && isIpAddress(SERVER_IP, relay ? MANDATORY : OPTIONAL) && isMacAddress(SERVER_MAC, OPTIONAL);
+    }
+    if (!servers.isArray() || servers.size() == 0) {
+      return false;
+    }
+    for (JsonNode node : servers) {
+      if (!node.isObject()) {
+        return false;
+      }
+      ObjectNode server = (ObjectNode) node;
+      if (!hasOnlyFields(server, LOCATION, IP, MAC) || !isConnectPoint(server, LOCATION, MANDATORY)
+          || !isIpAddress(server, IP, relay ? MANDATORY : OPTIONAL) || !isMacAddress(server, MAC, OPTIONAL)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public ConnectPoint srv() {
     return ConnectPoint.deviceConnectPoint(get(SRV_LOC, null));
   }
 
-  public ConnectPoint cli() {
-    return ConnectPoint.deviceConnectPoint(get(CLI_LOC, null));
+  public String mode() {
+    return get(MODE, MODE_PER_CLIENT);
+  }
+
+  /**
+   * Returns the servers in order of preference, or the single server of
+   * serverLocation if no list is given.
+   *
+   * @return servers
+   */
+  public List<Server> servers() {
+    List<Server> servers = new ArrayList<>();
+    JsonNode nodes = object.path(SERVERS);
+    if (!nodes.isArray()) {
+      servers.add(new Server(srv(), address(get(SERVER_IP, null)), get(SERVER_MAC, null)));
+      return servers;
+    }
+    for (JsonNode node : nodes) {
+      servers.add(new Server(ConnectPoint.deviceConnectPoint(node.path(LOCATION).asText()),
+          address(node.path(IP).asText(null)), node.path(MAC).asText(null)));
+    }
+    return servers;
+  }
+
+  public Ip4Address relayIp() {
+    return Ip4Address.valueOf(get(RELAY_IP, null));
+  }
+
+  public MacAddress relayMac() {
+    return MacAddress.valueOf(get(RELAY_MAC, null));
+  }
+
+  private static Ip4Address address(String ip) {
+    return ip == null ? null : Ip4Address.valueOf(ip);
+  }
+
+  /**
+   * DHCP server and where it is attached.
+   */
+  public static final class Server {
+    private final ConnectPoint location;
+    private final Ip4Address ip;
+    private final MacAddress mac;
+
+    private Server(ConnectPoint location, Ip4Address ip, String mac) {
+      this.location = location;
+      this.ip = ip;
+      this.mac = mac == null ? MacAddress.BROADCAST : MacAddress.valueOf(mac);
+    }
+
+    public ConnectPoint location() {
+      return location;
+    }
+
+    /** IP address of the server, null if not configured. */
+    public Ip4Address ip() {
+      return ip;
+    }
+
+    /** MAC address of the server, broadcast if not configured. */
+    public MacAddress mac() {
+      return mac;
+    }
+
+    @Override
+    public String toString() {
+      return ip == null ? location.toString() : ip + "@" + location;
+    }
   }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import nctu.winlab.unicastdhcp.ClientRegistry.Registration;
+
+/**
+ * Tests of the client registry.
+ */
+public class ClientRegistryTest {
+
+    private static final long MAC = 0x0000_0000_0001L;
+    private static final long OTHER = 0x0000_0000_0002L;
+
+    @Test
+    public void refresh() {
+        ClientRegistry registry = new ClientRegistry(16);
+        assertEquals(Registration.ADDED, registry.register(MAC, 0, 10));
+        assertEquals(Registration.REFRESHED, registry.register(MAC, 5, 10));
+        assertTrue(registry.contains(MAC, 14));
+        assertFalse(registry.contains(MAC, 15));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void expiredUntilReported() {
+        ClientRegistry registry = new ClientRegistry(16);
+        registry.register(MAC, 0, 10);
+
+        // Lease ran out but not reported yet, the client keeps its intents
+        assertEquals(Registration.REFRESHED, registry.register(MAC, 20, 10));
+        assertArrayEquals(new long[0], registry.expire(25));
+
+        assertArrayEquals(new long[] {MAC}, registry.expire(30));
+        assertArrayEquals(new long[0], registry.expire(30));
+        assertEquals(0, registry.size());
+        assertEquals(Registration.ADDED, registry.register(MAC, 40, 10));
+    }
+
+    @Test
+    public void noReuseBeforeReport() {
+        ClientRegistry registry = new ClientRegistry(1);
+        registry.register(MAC, 0, 10);
+
+        // The expired client still counts until reported, so it cannot be displaced
+        assertEquals(Registration.FULL, registry.register(OTHER, 20, 10));
+        assertTrue(registry.contains(MAC, 5));
+
+        assertArrayEquals(new long[] {MAC}, registry.expire(20));
+        assertEquals(Registration.ADDED, registry.register(OTHER, 20, 10));
+        assertEquals(Registration.FULL, registry.register(MAC, 20, 10));
+    }
+
+    @Test
+    public void full() {
+        int capacity = 1000;
+        ClientRegistry registry = new ClientRegistry(capacity);
+        for (long mac = 1; mac <= capacity; mac++) {
+            assertEquals(Registration.ADDED, registry.register(mac, 0, 10));
+        }
+        assertEquals(Registration.FULL, registry.register(capacity + 1, 0, 10));
+        assertEquals(Registration.REFRESHED, registry.register(1, 0, 10));
+        assertEquals(capacity, registry.size());
+    }
+
+    @Test
+    public void churn() {
+        int capacity = 1000;
+        ClientRegistry registry = new ClientRegistry(capacity);
+        long mac = 1;
+        for (int round = 0; round < 20; round++) {
+            long now = round * 100L;
+            for (int i = 0; i < capacity; i++, mac++) {
+                assertEquals(Registration.ADDED, registry.register(mac, now, 10));
+            }
+            assertEquals(capacity, registry.expire(now + 50).length);
+            assertEquals(0, registry.size());
+        }
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        int capacity = 10000;
+        int threads = 4;
+        ClientRegistry registry = new ClientRegistry(capacity);
+        AtomicInteger added = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = t * (long) capacity;
+            workers.add(new Thread(() -> {
+                for (long mac = base; mac < base + capacity; mac++) {
+                    if (registry.register(mac, 0, 10) == Registration.ADDED) {
+                        added.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(capacity, added.get());
+        assertEquals(capacity, registry.size());
+        long[] expired = registry.expire(10);
+        Arrays.sort(expired);
+        assertEquals(capacity, expired.length);
+        for (int i = 1; i < expired.length; i++) {
+            assertTrue(expired[i] != expired[i - 1]);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.unicastdhcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+
+import nctu.winlab.unicastdhcp.LeaseTable.Lease;
+
+/**
+ * Tests of the relay lease table.
+ */
+public class LeaseTableTest {
+
+    private static final ConnectPoint CP = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+
+    @Test
+    public void learn() {
+        LeaseTable leases = new LeaseTable(2);
+        assertTrue(leases.learn(lease(1, 10_000), 0).isEmpty());
+        assertEquals(lease(1, 10_000).ip(), leases.get(mac(1)).ip());
+
+        // Renewals replace the lease
+        assertTrue(leases.learn(lease(1, 20_000), 5_000).isEmpty());
+        assertEquals(20_000, leases.get(mac(1)).expiry());
+        assertEquals(1, leases.size());
+    }
+
+    @Test
+    public void full() {
+        LeaseTable leases = new LeaseTable(2);
+        leases.learn(lease(1, 10_000), 0);
+        leases.learn(lease(2, 20_000), 0);
+
+        assertNull(leases.learn(lease(3, 30_000), 5_000));
+        assertNull(leases.get(mac(3)));
+        assertEquals(2, leases.size());
+
+        // Known clients still renew
+        assertTrue(leases.learn(lease(2, 40_000), 5_000).isEmpty());
+    }
+
+    @Test
+    public void evictExpiredWhenFull() {
+        LeaseTable leases = new LeaseTable(2);
+        leases.learn(lease(1, 10_000), 0);
+        leases.learn(lease(2, 20_000), 0);
+
+        List<Lease> evicted = leases.learn(lease(3, 30_000), 10_000);
+        assertEquals(1, evicted.size());
+        assertEquals(mac(1), evicted.get(0).mac());
+        assertNull(leases.get(mac(1)));
+        assertEquals(30_000, leases.get(mac(3)).expiry());
+        assertEquals(2, leases.size());
+    }
+
+    @Test
+    public void expire() {
+        LeaseTable leases = new LeaseTable(4);
+        leases.learn(lease(1, 10_000), 0);
+        leases.learn(lease(2, 20_000), 0);
+
+        assertTrue(leases.expire(9_999).isEmpty());
+        assertEquals(1, leases.expire(10_000).size());
+        assertEquals(1, leases.size());
+    }
+
+    private static MacAddress mac(int i) {
+        return MacAddress.valueOf(0x020000000000L + i);
+    }
+
+    private static Lease lease(int i, long expiry) {
+        return new Lease(mac(i), VlanId.NONE, Ip4Address.valueOf(0x0a000000 + i), CP, expiry);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds ARP replies straight from the raw bytes of the request.
+ * <p>
+ * The reply is the request with the addresses swapped, so it is written into
+ * one array of the same header layout instead of going through an
+ * {@link Ethernet} and {@link ARP} object graph and its serializer. Buffers are
+ * not pooled since the packet service may emit them asynchronously.
+ */
+final class ArpReplies {
+
+    private static final int MAC_LENGTH = 6;
+    private static final int IP_LENGTH = 4;
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int VLAN_HEADER_LENGTH = 4;
+    private static final int ARP_LENGTH = 28;
+
+    // Offsets within the ARP header
+    private static final int ARP_OPCODE = 6;
+    private static final int ARP_SENDER_MAC = 8;
+    private static final int ARP_SENDER_IP = ARP_SENDER_MAC + MAC_LENGTH;
+    private static final int ARP_TARGET_MAC = ARP_SENDER_IP + IP_LENGTH;
+    private static final int ARP_TARGET_IP = ARP_TARGET_MAC + MAC_LENGTH;
+
+    private ArpReplies() {
+    }
+
+    /**
+     * Builds the reply to an Ethernet ARP request for an IPv4 address.
+     *
+     * @param request raw request frame, left unchanged
+     * @param mac MAC address the target IP address resolves to
+     * @return reply frame, or null if the request is not an IPv4 over
+     *         Ethernet ARP request
+     */
+    static ByteBuffer reply(ByteBuffer request, MacAddress mac) {
+        int base = request.position();
+        int arp = ETH_HEADER_LENGTH;
+        if (request.remaining() >= arp && request.getShort(base + arp - 2) == Ethernet.TYPE_VLAN) {
+            arp += VLAN_HEADER_LENGTH;
+        }
+        if (request.remaining() < arp + ARP_LENGTH
+                || request.getShort(base + arp - 2) != Ethernet.TYPE_ARP
+                || request.getShort(base + arp) != ARP.HW_TYPE_ETHERNET
+                || request.getShort(base + arp + 2) != ARP.PROTO_TYPE_IP
+                || request.get(base + arp + 4) != MAC_LENGTH
+                || request.get(base + arp + 5) != IP_LENGTH
+                || request.getShort(base + arp + ARP_OPCODE) != ARP.OP_REQUEST) {
+            return null;
+        }
+
+        byte[] reply = new byte[arp + ARP_LENGTH];
+        byte[] resolved = mac.toBytes();
+
+        /* Ethernet: back to the requester from the resolved MAC, keeping the VLAN tag and ethertype */
+        copy(request, base + MAC_LENGTH, reply, 0, MAC_LENGTH);
+        System.arraycopy(resolved, 0, reply, MAC_LENGTH, MAC_LENGTH);
+        copy(request, base + 2 * MAC_LENGTH, reply, 2 * MAC_LENGTH, arp - 2 * MAC_LENGTH);
+
+        /* ARP: same address types, sender and target swapped */
+        copy(request, base + arp, reply, arp, ARP_OPCODE);
+        reply[arp + ARP_OPCODE] = 0;
+        reply[arp + ARP_OPCODE + 1] = (byte) ARP.OP_REPLY;
+        System.arraycopy(resolved, 0, reply, arp + ARP_SENDER_MAC, MAC_LENGTH);
+        copy(request, base + arp + ARP_TARGET_IP, reply, arp + ARP_SENDER_IP, IP_LENGTH);
+        copy(request, base + arp + ARP_SENDER_MAC, reply, arp + ARP_TARGET_MAC, MAC_LENGTH + IP_LENGTH);
+
+        return ByteBuffer.wrap(reply);
+    }
+
+    private static void copy(ByteBuffer src, int srcIndex, byte[] dst, int dstIndex, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstIndex + i] = src.get(srcIndex + i);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+import com.google.common.collect.Lists;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fabric-wide IP to (MAC, location) bindings, shared by the ARP and NDP
+ * proxies so a host learned on any switch can be answered at every edge.
+ * <p>
+ * Bindings expire after the TTL unless the host is heard from again, and are
+ * due for a refresh probe once three quarters of the TTL have passed. The
+ * table holds at most the configured number of bindings and evicts the least
+ * recently used one when full.
+ * <p>
+ * A binding claimed by another MAC address can be challenged: unless its
+ * host confirms it before the deadline, the challenger takes it over.
+ */
+class BindingTable {
+
+    /*
+     * Estimated heap cost of one IPv4 binding with compressed oops: linked map
+     * node (40) and its share of the bucket array (about 8), Ip4Address with
+     * its byte array (48), Binding (48) and MacAddress with its byte array
+     * (40). Locations are shared per edge port, see locations. Not measured
+     * against ONOS classes; a stand-in with the same fields came to 184-200.
+     */
+    private static final int ESTIMATED_BINDING_FOOTPRINT = 192;
+
+    /** Outcome of learning a binding. */
+    enum Update {
+        /** The IP address was not bound. */
+        ADDED,
+        /** The binding was confirmed by its host. */
+        REFRESHED,
+        /** The host was seen on another edge port. */
+        MOVED,
+        /** A gratuitous ARP rebound the IP address to another MAC address. */
+        REPLACED,
+        /** Another MAC address claimed a live binding; the binding was kept for now. */
+        CONFLICT
+    }
+
+    private final Map<IpAddress, Binding> bindings = new LinkedHashMap<>(16, 0.75f, true);
+
+    /*
+     * One instance per edge port seen. Every packet-in carries a new
+     * ConnectPoint with its own DeviceId and PortNumber, which would
+     * otherwise be kept for each binding.
+     */
+    private final Map<ConnectPoint, ConnectPoint> locations = new HashMap<>();
+
+    private long ttl;
+    private int capacity;
+
+    private long conflictCount;
+    private long takeoverCount;
+    private long evictionCount;
+    private long expirationCount;
+
+    /**
+     * Creates a binding table.
+     *
+     * @param ttl binding lifetime in milliseconds
+     * @param capacity maximum number of bindings
+     */
+    BindingTable(long ttl, int capacity) {
+        this.ttl = ttl;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Changes the binding lifetime and table size.
+     *
+     * @param ttl binding lifetime in milliseconds
+     * @param capacity maximum number of bindings
+     */
+    synchronized void configure(long ttl, int capacity) {
+        this.ttl = ttl;
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Returns the live binding of an IP address.
+     *
+     * @param ip IP address
+     * @param now current time in milliseconds
+     * @return binding, or null if unknown or expired
+     */
+    synchronized Binding get(IpAddress ip, long now) {
+        Binding binding = settle(ip, now);
+        if (binding == null || now - binding.seen >= ttl) {
+            return null;
+        }
+        return binding;
+    }
+
+    /**
+     * Learns a binding from a host that was heard from.
+     *
+     * @param ip IP address
+     * @param mac MAC address
+     * @param location edge connect point of the host
+     * @param gratuitous whether the host announced the binding itself
+     * @param now current time in milliseconds
+     * @return what changed
+     */
+    synchronized Update learn(IpAddress ip, MacAddress mac, ConnectPoint location, boolean gratuitous, long now) {
+        location = locations.computeIfAbsent(location, l -> l);
+        Binding binding = settle(ip, now);
+        if (binding == null || now - binding.seen >= ttl) {
+            bindings.put(ip, new Binding(mac, location, now));
+            evict();
+            return Update.ADDED;
+        }
+
+        if (binding.mac.equals(mac)) {
+            bindings.put(ip, new Binding(mac, location, now));
+            return binding.location.equals(location) ? Update.REFRESHED : Update.MOVED;
+        }
+
+        if (gratuitous) {
+            bindings.put(ip, new Binding(mac, location, now));
+            return Update.REPLACED;
+        }
+
+        // Keep the live binding, the caller may challenge it
+        conflictCount++;
+        return Update.CONFLICT;
+    }
+
+    /**
+     * Challenges the live binding of an IP address on behalf of another host.
+     * The challenger takes the binding over at the deadline unless the bound
+     * host is heard from before, which replaces the challenged binding.
+     *
+     * @param ip IP address
+     * @param mac MAC address of the challenger
+     * @param location edge connect point of the challenger
+     * @param now current time in milliseconds
+     * @param timeout milliseconds the bound host has to answer
+     * @return the challenged binding, or null if there is nothing to challenge
+     */
+    synchronized Binding challenge(IpAddress ip, MacAddress mac, ConnectPoint location, long now, long timeout) {
+        Binding binding = settle(ip, now);
+        if (binding == null || now - binding.seen >= ttl || binding.mac.equals(mac)) {
+            return null;
+        }
+        if (binding.challenger == null) {
+            binding.deadline = now + timeout;
+        }
+        // The latest claim wins, the deadline stays
+        binding.challenger = new Binding(mac, locations.computeIfAbsent(location, l -> l), now);
+        return binding;
+    }
+
+    /* Hands a binding to its challenger once the deadline passed unanswered */
+    private Binding settle(IpAddress ip, long now) {
+        Binding binding = bindings.get(ip);
+        if (binding != null && binding.challenger != null && now >= binding.deadline) {
+            binding = binding.challenger;
+            bindings.put(ip, binding);
+            takeoverCount++;
+        }
+        return binding;
+    }
+
+    /**
+     * Returns the bindings due for a refresh probe, marking them as probed.
+     *
+     * @param now current time in milliseconds
+     * @return IP addresses with their bindings
+     */
+    synchronized List<Map.Entry<IpAddress, Binding>> refreshDue(long now) {
+        List<Map.Entry<IpAddress, Binding>> due = Lists.newArrayList();
+        for (Map.Entry<IpAddress, Binding> entry : bindings.entrySet()) {
+            Binding binding = entry.getValue();
+            if (!binding.probed && now - binding.seen >= ttl * 3 / 4) {
+                binding.probed = true;
+                due.add(Map.entry(entry.getKey(), binding));
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Removes the bindings whose hosts were not heard from within the TTL.
+     *
+     * @param now current time in milliseconds
+     * @return number of expired bindings
+     */
+    synchronized int expire(long now) {
+        int expired = 0;
+        Iterator<Map.Entry<IpAddress, Binding>> it = bindings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<IpAddress, Binding> entry = it.next();
+            Binding binding = entry.getValue();
+            if (binding.challenger != null && now >= binding.deadline) {
+                entry.setValue(binding.challenger);
+                takeoverCount++;
+            } else if (now - binding.seen >= ttl) {
+                it.remove();
+                expired++;
+            }
+        }
+        expirationCount += expired;
+        return expired;
+    }
+
+    private void evict() {
+        Iterator<Binding> it = bindings.values().iterator();
+        while (bindings.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    synchronized int size() {
+        return bindings.size();
+    }
+
+    synchronized long conflictCount() {
+        return conflictCount;
+    }
+
+    synchronized long takeoverCount() {
+        return takeoverCount;
+    }
+
+    synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    synchronized long expirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * Estimates the heap used by the bindings from their number and a fixed
+     * per-binding cost. This is an estimate, not a measurement.
+     *
+     * @return estimated size in bytes
+     */
+    synchronized long estimatedFootprint() {
+        return (long) bindings.size() * ESTIMATED_BINDING_FOOTPRINT;
+    }
+
+    /**
+     * Binding of an IP address to the MAC address and location of its host.
+     */
+    static final class Binding {
+        private final MacAddress mac;
+        private final ConnectPoint location;
+        private final long seen;
+        private boolean probed;
+        private Binding challenger;
+        private long deadline;
+
+        Binding(MacAddress mac, ConnectPoint location, long seen) {
+            this.mac = mac;
+            this.location = location;
+            this.seen = seen;
+        }
+
+        MacAddress mac() {
+            return mac;
+        }
+
+        ConnectPoint location() {
+            return location;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mac, location);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Binding)) {
+                return false;
+            }
+            Binding that = (Binding) obj;
+            return mac.equals(that.mac) && location.equals(that.location);
+        }
+
+        @Override
+        public String toString() {
+            return mac + "@" + location;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+import java.nio.ByteBuffer;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.ndp.NeighborAdvertisement;
+import org.onlab.packet.ndp.NeighborSolicitation;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IPv6 counterpart of the ARP proxy: answers neighbor solicitations from
+ * the neighbor advertisements and solicitations seen by the controller.
+ */
+class NdpProxy {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final PacketService packetService;
+    private final EdgePortService edgePortService;
+    private final BindingTable bindings;
+
+    NdpProxy(PacketService packetService, EdgePortService edgePortService, BindingTable bindings) {
+        this.packetService = packetService;
+        this.edgePortService = edgePortService;
+        this.bindings = bindings;
+    }
+
+    /**
+     * Handles an IPv6 packet-in, answering neighbor solicitations for known
+     * addresses and relaying the rest like ProxyArp does for ARP.
+     *
+     * @param context packet context of an IPv6 frame
+     */
+    void process(PacketContext context) {
+        Ethernet ethPkt = context.inPacket().parsed();
+        IPv6 ipv6Pkt = (IPv6) ethPkt.getPayload();
+        if (ipv6Pkt.getNextHeader() != IPv6.PROTOCOL_ICMP6) {
+            return;
+        }
+        ICMP6 icmp6Pkt = (ICMP6) ipv6Pkt.getPayload();
+        byte type = icmp6Pkt.getIcmpType();
+        if (type != ICMP6.NEIGHBOR_SOLICITATION && type != ICMP6.NEIGHBOR_ADVERTISEMENT) {
+            return;
+        }
+
+        /* Layer 1 */
+        ConnectPoint cp = context.inPacket().receivedFrom();
+        boolean edge = edgePortService.isEdgePoint(cp);
+
+        /* Layer 2 */
+        MacAddress srcMac = ethPkt.getSourceMAC();
+
+        long now = System.currentTimeMillis();
+        Ip6Address srcIp = Ip6Address.valueOf(ipv6Pkt.getSourceAddress());
+        // Duplicate address detection is sent from the unspecified address
+        if (edge && !srcIp.isZero()) {
+            bindings.learn(srcIp, srcMac, cp, false, now);
+        }
+
+        if (type == ICMP6.NEIGHBOR_SOLICITATION) {
+            NeighborSolicitation nsPkt = (NeighborSolicitation) icmp6Pkt.getPayload();
+            Ip6Address targetIp = Ip6Address.valueOf(nsPkt.getTargetAddress());
+            log.info("NDP NS: " + srcIp + " (" + srcMac + ") -> " + targetIp);
+
+            BindingTable.Binding binding = bindings.get(targetIp, now);
+            if (binding == null || srcIp.isZero()) {
+                log.info("TABLE MISS. Send solicitation to edge ports");
+                context.treatmentBuilder().setOutput(PortNumber.FLOOD);
+                context.send();
+            } else {
+                MacAddress resMac = binding.mac();
+                log.info("TABLE HIT.  Requested MAC = " + resMac);
+                /* Made a Neighbor Advertisement based on resMac */
+                Ethernet naEth = NeighborAdvertisement.buildNdpAdv(targetIp, resMac, ethPkt);
+                ByteBuffer naBuf = ByteBuffer.wrap(naEth.serialize());
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+                OutboundPacket naPkt = new DefaultOutboundPacket(cp.deviceId(), treatment, naBuf);
+                packetService.emit(naPkt);
+                context.block();
+            }
+        } else {
+            NeighborAdvertisement naPkt = (NeighborAdvertisement) icmp6Pkt.getPayload();
+            Ip6Address targetIp = Ip6Address.valueOf(naPkt.getTargetAddress());
+            log.info("NDP NA: " + targetIp + " is at " + srcMac);
+            if (edge) {
+                // An unsolicited advertisement with the override flag is the NDP gratuitous ARP
+                boolean gratuitous = naPkt.getSolicitedFlag() == 0 && naPkt.getOverrideFlag() == 1;
+                if (bindings.learn(targetIp, srcMac, cp, gratuitous, now) == BindingTable.Update.CONFLICT) {
+                    log.warn("Duplicate IP " + targetIp + ": " + srcMac + " on " + cp);
+                }
+            }
+
+            // The soliciting host may sit behind any switch, send the advertisement straight to its edge port
+            BindingTable.Binding requester = bindings.get(Ip6Address.valueOf(ipv6Pkt.getDestinationAddress()),
+                    now);
+            if (requester != null) {
+                ConnectPoint outCp = requester.location();
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(outCp.port()).build();
+                packetService.emit(new DefaultOutboundPacket(outCp.deviceId(), treatment,
+                        context.inPacket().unparsed()));
+                context.block();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    static final String SEED_FROM_HOSTS = "seedFromHosts";
+    static final boolean SEED_FROM_HOSTS_DEFAULT = true;
+
+    static final String BINDING_TTL = "bindingTtl";
+    static final int BINDING_TTL_DEFAULT = 300;
+
+    static final String MAX_BINDINGS = "maxBindings";
+    static final int MAX_BINDINGS_DEFAULT = 10000;
+}
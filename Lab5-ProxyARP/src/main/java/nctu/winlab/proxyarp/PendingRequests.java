@@ -0,0 +1,134 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IpAddress;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ARP requests waiting for an unknown target to answer.
+ * <p>
+ * Concurrent misses for the same target share one outstanding resolution, and
+ * every requester queued on it is answered when the target replies. A
+ * resolution nobody answered within the timeout may be retried by the next
+ * miss.
+ */
+class PendingRequests {
+
+    private final Map<IpAddress, Pending> pending = Maps.newConcurrentMap();
+    private final long timeout;
+    private final int maxWaiters;
+
+    /**
+     * Creates an empty set of pending requests.
+     *
+     * @param timeout milliseconds before an unanswered resolution may be retried
+     * @param maxWaiters maximum number of requesters queued per target
+     */
+    PendingRequests(long timeout, int maxWaiters) {
+        this.timeout = timeout;
+        this.maxWaiters = maxWaiters;
+    }
+
+    /**
+     * Queues a requester on the resolution of a target.
+     *
+     * @param target target IP address
+     * @param location edge connect point of the requester
+     * @param request ARP request of the requester
+     * @param now current time in milliseconds
+     * @return true if the caller must send the request to resolve the target
+     */
+    boolean add(IpAddress target, ConnectPoint location, Ethernet request, long now) {
+        boolean[] resolve = new boolean[1];
+        pending.compute(target, (ip, p) -> {
+            if (p == null) {
+                p = new Pending(now);
+                resolve[0] = true;
+            } else if (now - p.sent >= timeout) {
+                p.sent = now;
+                resolve[0] = true;
+            }
+            // The same host asking again only needs one answer
+            p.waiters.removeIf(w -> w.location.equals(location) && w.request.getSourceMAC()
+                    .equals(request.getSourceMAC()));
+            if (p.waiters.size() < maxWaiters) {
+                p.waiters.add(new Waiter(location, request));
+            }
+            return p;
+        });
+        return resolve[0];
+    }
+
+    /**
+     * Removes the resolution of a target that answered.
+     *
+     * @param target target IP address
+     * @return queued requesters, empty if none
+     */
+    List<Waiter> resolve(IpAddress target) {
+        Pending p = pending.remove(target);
+        return p == null ? Collections.emptyList() : p.waiters;
+    }
+
+    /**
+     * Drops the resolutions that went unanswered for several timeouts.
+     *
+     * @param now current time in milliseconds
+     * @return number of dropped resolutions
+     */
+    int expire(long now) {
+        int expired = 0;
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().sent >= timeout * 3) {
+                it.remove();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    private static final class Pending {
+        private final List<Waiter> waiters = Lists.newArrayList();
+        private long sent;
+
+        private Pending(long sent) {
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Requester waiting for the reply.
+     */
+    static final class Waiter {
+        private final ConnectPoint location;
+        private final Ethernet request;
+
+        private Waiter(ConnectPoint location, Ethernet request) {
+            this.location = location;
+            this.request = request;
+        }
+
+        ConnectPoint location() {
+            return location;
+        }
+
+        Ethernet request() {
+            return request;
+        }
+    }
+}
@@ -7,16 +7,25 @@ import com.google.common.collect.Maps;
 import java.nio.ByteBuffer;
 import org.onlab.packet.ARP;
 import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
 import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
 import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
-import org.onosproject.net.PortNumber;
+import org.onosproject.net.Host;
+import org.onosproject.net.edge.EdgePortService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
 import org.onosproject.net.packet.DefaultOutboundPacket;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.OutboundPacket;
@@ -34,49 +43,268 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Component(immediate = true)
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.BINDING_TTL;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.BINDING_TTL_DEFAULT;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.MAX_BINDINGS;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.MAX_BINDINGS_DEFAULT;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.SEED_FROM_HOSTS;
+import static nctu.winlab.proxyarp.OsgiPropertyConstants.SEED_FROM_HOSTS_DEFAULT;
+import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
+
+@Component(
+    immediate = true,
+    property = {
+        SEED_FROM_HOSTS + ":Boolean=" + SEED_FROM_HOSTS_DEFAULT,
+        BINDING_TTL + ":Integer=" + BINDING_TTL_DEFAULT,
+        MAX_BINDINGS + ":Integer=" + MAX_BINDINGS_DEFAULT,
+    }
+)
 public class ProxyArp {
 
+    /* Source of the refresh probes, hosts answer probes to this address. */
+    private static final MacAddress PROBE_MAC = MacAddress.valueOf("02:00:00:00:00:fa");
+    private static final int REFRESH_INTERVAL = 5;
+    private static final int RESOLVE_TIMEOUT = 1000;
+    private static final int MAX_WAITERS = 64;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private ApplicationId appId;
 
-    protected Map<DeviceId, Map<Ip4Address, MacAddress>> arpTables = Maps.newConcurrentMap();
-    protected Map<DeviceId, Map<MacAddress, PortNumber>> macTables = Maps.newConcurrentMap();
+    protected BindingTable bindings = new BindingTable(BINDING_TTL_DEFAULT * 1000L, MAX_BINDINGS_DEFAULT);
+
+    /** Seed the binding table with the hosts known to the host service. */
+    private boolean seedFromHosts = SEED_FROM_HOSTS_DEFAULT;
+
+    /** Lifetime in seconds of a binding whose host is not heard from. */
+    private int bindingTtl = BINDING_TTL_DEFAULT;
+
+    /** Maximum number of bindings, least recently used ones are evicted. */
+    private int maxBindings = MAX_BINDINGS_DEFAULT;
+
+    private final PendingRequests pendingRequests = new PendingRequests(RESOLVE_TIMEOUT, MAX_WAITERS);
+
+    private final Map<Integer, AtomicLong> puntCounts = Maps.newConcurrentMap();
+
+    private ScheduledExecutorService refreshExecutor;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected CoreService coreService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected EdgePortService edgePortService;
+
     private SeanPacketProcessor processor = new SeanPacketProcessor();
 
+    private final HostListener hostListener = new InternalHostListener();
+
+    private NdpProxy ndpProxy;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected PacketService packetService;
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = coreService.registerApplication("nctu.winlab.ProxyArp");
+        cfgService.registerProperties(getClass());
+        ndpProxy = new NdpProxy(packetService, edgePortService, bindings);
+        hostService.addListener(hostListener);
+        readComponentConfiguration(context);
         packetService.addProcessor(processor, PacketProcessor.director(2));
         requestIntercepts();
+
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("nctu/proxyarp", "refresh", log));
+        refreshExecutor.scheduleAtFixedRate(this::refreshBindings,
+                REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.SECONDS);
     }
 
     @Deactivate
     protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        hostService.removeListener(hostListener);
+        withdrawIntercepts();
         packetService.removeProcessor(processor);
+        refreshExecutor.shutdownNow();
+        log.info("Packets seen per ethertype:{}", puntSummary());
+        log.info("{} IP bindings, an estimated {} KiB. {} conflicts, {} taken over, {} evicted, {} expired.",
+                bindings.size(), bindings.estimatedFootprint() / 1024, bindings.conflictCount(),
+                bindings.takeoverCount(), bindings.evictionCount(), bindings.expirationCount());
     }
 
     @Modified
     public void modified(ComponentContext context) {
+        readComponentConfiguration(context);
         requestIntercepts();
     }
 
+    private void readComponentConfiguration(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+
+        String s = get(properties, BINDING_TTL);
+        bindingTtl = isNullOrEmpty(s) ? BINDING_TTL_DEFAULT : Integer.parseInt(s.trim());
+
+        s = get(properties, MAX_BINDINGS);
+        maxBindings = isNullOrEmpty(s) ? MAX_BINDINGS_DEFAULT : Integer.parseInt(s.trim());
+
+        bindings.configure(bindingTtl * 1000L, maxBindings);
+        log.info("Bindings live for {} s, at most {} of them.", bindingTtl, maxBindings);
+
+        Boolean enabled = isPropertyEnabled(properties, SEED_FROM_HOSTS);
+        seedFromHosts = enabled == null ? SEED_FROM_HOSTS_DEFAULT : enabled;
+        if (seedFromHosts) {
+            hostService.getHosts().forEach(this::seed);
+            log.info("Seeded from host service, {} IP bindings.", bindings.size());
+        }
+    }
+
+    private void seed(Host host) {
+        ConnectPoint location = new ConnectPoint(host.location().deviceId(), host.location().port());
+        if (!edgePortService.isEdgePoint(location)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (IpAddress ip : host.ipAddresses()) {
+            bindings.learn(ip, host.mac(), location, false, now);
+        }
+    }
+
+    private void refreshBindings() {
+        long now = System.currentTimeMillis();
+        int expired = bindings.expire(now);
+        if (expired > 0) {
+            log.info("{} IP bindings expired.", expired);
+        }
+        pendingRequests.expire(now);
+
+        for (Map.Entry<IpAddress, BindingTable.Binding> entry : bindings.refreshDue(now)) {
+            // IPv6 bindings are relearned from the next solicitation once they expire
+            if (entry.getKey().isIp4()) {
+                probe(entry.getKey().getIp4Address(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Sends a unicast ARP probe to the bound host, whose reply refreshes the
+     * binding before it expires.
+     *
+     * @param ip IP address
+     * @param binding binding to confirm
+     */
+    private void probe(Ip4Address ip, BindingTable.Binding binding) {
+        ARP arpPkt = new ARP();
+        arpPkt.setHardwareType(ARP.HW_TYPE_ETHERNET)
+            .setProtocolType(ARP.PROTO_TYPE_IP)
+            .setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH)
+            .setProtocolAddressLength((byte) Ip4Address.BYTE_LENGTH)
+            .setOpCode(ARP.OP_REQUEST)
+            .setSenderHardwareAddress(PROBE_MAC.toBytes())
+            .setSenderProtocolAddress(Ip4Address.valueOf(0).toOctets())
+            .setTargetHardwareAddress(binding.mac().toBytes())
+            .setTargetProtocolAddress(ip.toOctets());
+
+        Ethernet probeEth = new Ethernet();
+        probeEth.setEtherType(Ethernet.TYPE_ARP)
+            .setSourceMACAddress(PROBE_MAC)
+            .setDestinationMACAddress(binding.mac())
+            .setPayload(arpPkt);
+
+        ConnectPoint cp = binding.location();
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+        packetService.emit(new DefaultOutboundPacket(cp.deviceId(), treatment, ByteBuffer.wrap(probeEth.serialize())));
+    }
+
+    /**
+     * Sends an ARP request for an unknown target straight to every edge port,
+     * one packet per device, except the port of the requester.
+     *
+     * @param ingress edge connect point of the requester
+     * @param request raw ARP request
+     */
+    private void resolve(ConnectPoint ingress, ByteBuffer request) {
+        Map<DeviceId, TrafficTreatment.Builder> treatments = Maps.newHashMap();
+        for (ConnectPoint cp : edgePortService.getEdgePoints()) {
+            if (!cp.equals(ingress)) {
+                treatments.computeIfAbsent(cp.deviceId(), d -> DefaultTrafficTreatment.builder()).setOutput(cp.port());
+            }
+        }
+        treatments.forEach((deviceId, treatment) ->
+                packetService.emit(new DefaultOutboundPacket(deviceId, treatment.build(), request.duplicate())));
+    }
+
+    private void learn(IpAddress ip, MacAddress mac, ConnectPoint cp, boolean gratuitous) {
+        long now = System.currentTimeMillis();
+        switch (bindings.learn(ip, mac, cp, gratuitous, now)) {
+            case ADDED:
+                log.info("Learned " + ip + " => " + mac + " on " + cp);
+                break;
+            case MOVED:
+                log.info("Moved " + ip + " (" + mac + ") to " + cp);
+                break;
+            case REPLACED:
+                log.info("Gratuitous " + ip + " => " + mac + " on " + cp);
+                break;
+            case CONFLICT:
+                if (!ip.isIp4()) {
+                    log.warn("Duplicate IP " + ip + ": " + mac + " on " + cp + " conflicts with "
+                            + bindings.get(ip, now));
+                    break;
+                }
+                // The new host takes over unless the bound one answers the probe in time
+                BindingTable.Binding binding = bindings.challenge(ip, mac, cp, now, RESOLVE_TIMEOUT);
+                log.warn("Duplicate IP " + ip + ": " + mac + " on " + cp + " conflicts with " + binding);
+                if (binding != null) {
+                    probe(ip.getIp4Address(), binding);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /* Only address resolution is punted, all other traffic stays in the data plane. */
+    private List<TrafficSelector> interceptSelectors() {
+        return List.of(
+                DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_ARP).build(),
+                DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_IPV6)
+                        .matchIPProtocol(IPv6.PROTOCOL_ICMP6).matchIcmpv6Type(ICMP6.NEIGHBOR_SOLICITATION).build(),
+                DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_IPV6)
+                        .matchIPProtocol(IPv6.PROTOCOL_ICMP6).matchIcmpv6Type(ICMP6.NEIGHBOR_ADVERTISEMENT).build());
+    }
+
     private void requestIntercepts() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
-        packetService.requestPackets(selector.matchEthType(Ethernet.TYPE_IPV4).build(),
-                PacketPriority.REACTIVE, appId);
-        packetService.requestPackets(selector.matchEthType(Ethernet.TYPE_ARP).build(),
-                PacketPriority.REACTIVE, appId);
+        for (TrafficSelector selector : interceptSelectors()) {
+            packetService.requestPackets(selector, PacketPriority.REACTIVE, appId);
+        }
+    }
+
+    private void withdrawIntercepts() {
+        for (TrafficSelector selector : interceptSelectors()) {
+            packetService.cancelPackets(selector, PacketPriority.REACTIVE, appId);
+        }
+    }
+
+    private String puntSummary() {
+        StringBuilder summary = new StringBuilder();
+        puntCounts.forEach((etherType, count) -> summary.append(String.format(" 0x%04x=%d", etherType, count.get())));
+        return summary.length() == 0 ? " none" : summary.toString();
     }
 
     private class SeanPacketProcessor implements PacketProcessor {
@@ -92,13 +320,15 @@ public class ProxyArp {
             if (ethPkt == null) {
                 return;
             }
+            puntCounts.computeIfAbsent(ethPkt.getEtherType() & 0xffff, t -> new AtomicLong()).incrementAndGet();
+
+            if (ethPkt.getEtherType() == Ethernet.TYPE_IPV6) {
+                ndpProxy.process(context);
+                return;
+            }
 
             /* Layer 1 */
             ConnectPoint cp = pkt.receivedFrom();
-            arpTables.putIfAbsent(cp.deviceId(), Maps.newConcurrentMap());
-            Map<Ip4Address, MacAddress> arpTable = arpTables.get(cp.deviceId());
-            macTables.putIfAbsent(cp.deviceId(), Maps.newConcurrentMap());
-            Map<MacAddress, PortNumber> macTable = macTables.get(cp.deviceId());
 
             /* Layer 2 */
             MacAddress srcMac = ethPkt.getSourceMAC();
@@ -112,26 +342,37 @@ public class ProxyArp {
             Ip4Address srcIp = Ip4Address.valueOf(arpPkt.getSenderProtocolAddress());
             Ip4Address dstIp = Ip4Address.valueOf(arpPkt.getTargetProtocolAddress());
 
-            if (arpTable.get(srcIp) == null) {
-                arpTable.put(srcIp, srcMac);
+            // Flooded copies re-enter on infrastructure ports, only edge ports see the sender first hand
+            if (edgePortService.isEdgePoint(cp) && !srcIp.isZero()) {
+                learn(srcIp, srcMac, cp, srcIp.equals(dstIp));
             }
 
-            if (macTable.get(srcMac) == null) {
-                macTable.put(srcMac, cp.port());
+            if (dstMac.equals(PROBE_MAC)) {
+                // Answer to a refresh probe, the binding is refreshed already
+                context.block();
+                return;
             }
 
             log.info("ARP: " + srcIp + " (" + srcMac + ") -> " + dstIp + " (" + dstMac + ")");
             if (arpPkt.getOpCode() == ARP.OP_REQUEST) {
-                MacAddress resMac = arpTable.get(dstIp);
-                if (resMac == null) {
-                    log.info("TABLE MISS. Send request to edge ports");
-                    context.treatmentBuilder().setOutput(PortNumber.FLOOD);
-                    context.send();
+                long now = System.currentTimeMillis();
+                BindingTable.Binding binding = bindings.get(dstIp, now);
+                if (binding == null) {
+                    if (pendingRequests.add(dstIp, cp, ethPkt, now)) {
+                        log.info("TABLE MISS. Send request to edge ports");
+                        resolve(cp, pkt.unparsed());
+                    } else {
+                        log.info("TABLE MISS. Wait for the outstanding request");
+                    }
+                    context.block();
                 } else {
+                    MacAddress resMac = binding.mac();
                     log.info("TABLE HIT.  Requested MAC = " + resMac);
-                    /* Made a ARP Reply based on resMac */
-                    Ethernet arpReplyEth = ARP.buildArpReply(dstIp, resMac, ethPkt);
-                    ByteBuffer arpReplyBuf = ByteBuffer.wrap(arpReplyEth.serialize());
+                    /* Made a ARP Reply based on resMac, straight from the raw request */
+                    ByteBuffer arpReplyBuf = ArpReplies.reply(pkt.unparsed(), resMac);
+                    if (arpReplyBuf == null) {
+                        arpReplyBuf = ByteBuffer.wrap(ARP.buildArpReply(dstIp, resMac, ethPkt).serialize());
+                    }
                     TrafficTreatment treatment = context.treatmentBuilder().setOutput(cp.port()).build();
                     OutboundPacket arpReplyPkt = new DefaultOutboundPacket(cp.deviceId(), treatment, arpReplyBuf);
                     packetService.emit(arpReplyPkt);
@@ -139,11 +380,27 @@ public class ProxyArp {
                 // log.info("ARP Req: " + srcIp + " (" + srcMac + ") -> " + dstIp + " (" + dstMac + ")");
             } else if (arpPkt.getOpCode() == ARP.OP_REPLY) {
                 log.info("RECV REPLY. Requested MAC = " + srcMac);
+                List<PendingRequests.Waiter> waiters = pendingRequests.resolve(srcIp);
+                if (!waiters.isEmpty()) {
+                    // Answer every host that asked while the request was outstanding
+                    for (PendingRequests.Waiter waiter : waiters) {
+                        Ethernet arpReplyEth = ARP.buildArpReply(srcIp, srcMac, waiter.request());
+                        ConnectPoint outCp = waiter.location();
+                        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(outCp.port()).build();
+                        packetService.emit(new DefaultOutboundPacket(outCp.deviceId(), treatment,
+                                ByteBuffer.wrap(arpReplyEth.serialize())));
+                    }
+                    context.block();
+                    return;
+                }
                 // log.info("ARP Reply: " + srcIp + " (" + srcMac + ") -> " + dstIp + " (" + dstMac + ")");
-                PortNumber outPort = macTable.get(dstMac);
-                if (outPort != null) {
-                    context.treatmentBuilder().setOutput(outPort);
-                    context.send();
+                // The requester may sit behind any switch, send the reply straight to its edge port
+                BindingTable.Binding requester = bindings.get(dstIp, System.currentTimeMillis());
+                if (requester != null) {
+                    ConnectPoint outCp = requester.location();
+                    TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(outCp.port()).build();
+                    packetService.emit(new DefaultOutboundPacket(outCp.deviceId(), treatment, pkt.unparsed()));
+                    context.block();
                 }
             } else {
                 log.info("ARP Op" + arpPkt.getOpCode() + ": "
@@ -151,4 +408,24 @@ public class ProxyArp {
             }
         }
     }
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public boolean isRelevant(HostEvent event) {
+            return seedFromHosts;
+        }
+
+        @Override
+        public void event(HostEvent event) {
+            switch (event.type()) {
+                case HOST_ADDED:
+                case HOST_UPDATED:
+                case HOST_MOVED:
+                    seed(event.subject());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
 }
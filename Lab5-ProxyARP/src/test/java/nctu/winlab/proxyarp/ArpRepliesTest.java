@@ -0,0 +1,111 @@
+/*
+ * Author: Sean Wei <me@sean.taipei>
+ */
+package nctu.winlab.proxyarp;
+
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the raw ARP reply builder against hand-built frames.
+ */
+public class ArpRepliesTest {
+
+    private static final byte[] REQUESTER_MAC = {0x02, 0, 0, 0, 0, 0x01};
+    private static final byte[] REQUESTER_IP = {10, 0, 0, 1};
+    private static final byte[] TARGET_IP = {10, 0, 0, 2};
+    private static final MacAddress RESOLVED = MacAddress.valueOf("02:00:00:00:00:02");
+    private static final short VLAN = 100;
+
+    private static final short TYPE_VLAN = (short) 0x8100;
+    private static final short TYPE_ARP = 0x0806;
+    private static final short TYPE_IPV4 = 0x0800;
+    private static final short OP_REQUEST = 1;
+    private static final short OP_REPLY = 2;
+
+    @Test
+    public void untagged() {
+        ByteBuffer reply = ArpReplies.reply(ByteBuffer.wrap(request(false, TYPE_ARP, OP_REQUEST)), RESOLVED);
+        assertArrayEquals(reply(false), bytes(reply));
+    }
+
+    @Test
+    public void tagged() {
+        ByteBuffer reply = ArpReplies.reply(ByteBuffer.wrap(request(true, TYPE_ARP, OP_REQUEST)), RESOLVED);
+        assertArrayEquals(reply(true), bytes(reply));
+    }
+
+    @Test
+    public void requestLeftUnchanged() {
+        // The frame starts past the buffer's start and is followed by padding
+        byte[] frame = request(false, TYPE_ARP, OP_REQUEST);
+        ByteBuffer request = ByteBuffer.allocate(frame.length + 24);
+        request.position(6);
+        request.put(frame);
+        request.position(6);
+        byte[] before = request.array().clone();
+
+        ByteBuffer reply = ArpReplies.reply(request, RESOLVED);
+        assertArrayEquals(reply(false), bytes(reply));
+        assertArrayEquals(before, request.array());
+        assertEquals(6, request.position());
+    }
+
+    @Test
+    public void notArp() {
+        assertNull(ArpReplies.reply(ByteBuffer.wrap(request(false, TYPE_IPV4, OP_REQUEST)), RESOLVED));
+        assertNull(ArpReplies.reply(ByteBuffer.wrap(request(true, TYPE_IPV4, OP_REQUEST)), RESOLVED));
+    }
+
+    @Test
+    public void notRequest() {
+        assertNull(ArpReplies.reply(ByteBuffer.wrap(request(false, TYPE_ARP, OP_REPLY)), RESOLVED));
+    }
+
+    @Test
+    public void truncated() {
+        byte[] frame = request(true, TYPE_ARP, OP_REQUEST);
+        assertNull(ArpReplies.reply(ByteBuffer.wrap(frame, 0, frame.length - 1), RESOLVED));
+        assertNull(ArpReplies.reply(ByteBuffer.wrap(frame, 0, 13), RESOLVED));
+    }
+
+    private static byte[] request(boolean tagged, short etherType, short opCode) {
+        ByteBuffer frame = ByteBuffer.allocate(tagged ? 46 : 42);
+        frame.put(MacAddress.BROADCAST.toBytes()).put(REQUESTER_MAC);
+        if (tagged) {
+            frame.putShort(TYPE_VLAN).putShort(VLAN);
+        }
+        frame.putShort(etherType);
+        arp(frame, opCode, REQUESTER_MAC, REQUESTER_IP, new byte[6], TARGET_IP);
+        return frame.array();
+    }
+
+    private static byte[] reply(boolean tagged) {
+        ByteBuffer frame = ByteBuffer.allocate(tagged ? 46 : 42);
+        frame.put(REQUESTER_MAC).put(RESOLVED.toBytes());
+        if (tagged) {
+            frame.putShort(TYPE_VLAN).putShort(VLAN);
+        }
+        frame.putShort(TYPE_ARP);
+        arp(frame, OP_REPLY, RESOLVED.toBytes(), TARGET_IP, REQUESTER_MAC, REQUESTER_IP);
+        return frame.array();
+    }
+
+    private static void arp(ByteBuffer frame, short opCode, byte[] senderMac, byte[] senderIp,
+                            byte[] targetMac, byte[] targetIp) {
+        frame.putShort((short) 1).putShort(TYPE_IPV4).put((byte) 6).put((byte) 4).putShort(opCode);
+        frame.put(senderMac).put(senderIp).put(targetMac).put(targetIp);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+package nycu.sdnfv.vrouter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IpAddress;
+import org.onosproject.net.ConnectPoint;
+
+/**
+ * Packets held back while their BGP next hop is being resolved.
+ * <p>
+ * Each next hop queues a bounded number of packets; the first packet starts
+ * an ARP probe and later ones only wait. A probe nobody answered within the
+ * timeout is retried by the next packet, dropping the packets queued so far.
+ */
+class PendingPackets {
+
+    private final Map<IpAddress, Pending> pending = Maps.newConcurrentMap();
+    private final long timeout;
+    private final int capacity;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param timeout milliseconds before an unanswered probe is retried
+     * @param capacity maximum number of packets queued per next hop
+     */
+    PendingPackets(long timeout, int capacity) {
+        this.timeout = timeout;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a packet for an unresolved next hop.
+     *
+     * @param nextHop next hop IP address
+     * @param ingress connect point the packet was received on
+     * @param packet parsed packet
+     * @param now current time in milliseconds
+     * @return true if the caller must probe the next hop
+     */
+    boolean add(IpAddress nextHop, ConnectPoint ingress, Ethernet packet, long now) {
+        boolean[] probe = new boolean[1];
+        pending.compute(nextHop, (ip, p) -> {
+            if (p == null || now - p.probed >= timeout) {
+                p = new Pending(now);
+                probe[0] = true;
+            }
+            if (p.packets.size() < capacity) {
+                p.packets.add(new Packet(ingress, packet));
+            }
+            return p;
+        });
+        return probe[0];
+    }
+
+    /**
+     * Removes the packets waiting for a next hop that got resolved.
+     *
+     * @param nextHop next hop IP address
+     * @return queued packets in arrival order, empty if none
+     */
+    List<Packet> flush(IpAddress nextHop) {
+        Pending p = pending.remove(nextHop);
+        return p == null ? Collections.emptyList() : p.packets;
+    }
+
+    void clear() {
+        pending.clear();
+    }
+
+    private static final class Pending {
+        private final List<Packet> packets = new ArrayList<>();
+        private final long probed;
+
+        private Pending(long probed) {
+            this.probed = probed;
+        }
+    }
+
+    /**
+     * Packet waiting for its next hop.
+     */
+    static final class Packet {
+        private final ConnectPoint ingress;
+        private final Ethernet ethPkt;
+
+        private Packet(ConnectPoint ingress, Ethernet ethPkt) {
+            this.ingress = ingress;
+            this.ethPkt = ethPkt;
+        }
+
+        ConnectPoint ingress() {
+            return ingress;
+        }
+
+        Ethernet ethPkt() {
+            return ethPkt;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package nycu.sdnfv.vrouter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.routeservice.ResolvedRoute;
+
+/**
+ * Caches where packets to a destination IP go: the MAC address to rewrite to
+ * and the connect point to leave from, either of the host itself or of the
+ * BGP next hop routing to it.
+ * <p>
+ * The cache holds a bounded number of destinations, evicting about the least
+ * recently used, so a scan cannot grow it without limit. Entries are
+ * invalidated by host, interface and route events; routed destinations are
+ * indexed by next hop and by route prefix, so an event only touches the
+ * entries it affects. A resolution computed while an invalidation happened is
+ * not cached, so it cannot bring back a stale entry.
+ */
+class ResolutionCache {
+
+    private final Cache<IpAddress, Resolution> resolutions;
+    private final AtomicLong generation = new AtomicLong();
+
+    /* Routed destinations by next hop and by route prefix, guarded by this */
+    private final Map<IpAddress, Set<IpAddress>> byNextHop = Maps.newHashMap();
+    private final Map<IpPrefix, Set<IpAddress>> byPrefix = Maps.newHashMap();
+
+    /**
+     * Creates a resolution cache.
+     *
+     * @param maxSize maximum number of destinations
+     */
+    ResolutionCache(int maxSize) {
+        resolutions = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .removalListener((RemovalListener<IpAddress, Resolution>) this::removed)
+            .build();
+    }
+
+    Resolution get(IpAddress dst) {
+        return resolutions.getIfPresent(dst);
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the
+     * resolution is computed.
+     *
+     * @return generation
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a resolution unless something was invalidated since it started.
+     *
+     * @param dst destination IP address
+     * @param resolution resolution
+     * @param since generation read before resolving
+     */
+    synchronized void put(IpAddress dst, Resolution resolution, long since) {
+        if (generation.get() != since) {
+            return;
+        }
+        Resolution previous = resolutions.getIfPresent(dst);
+        if (previous != null) {
+            unindex(dst, previous);
+        }
+        index(dst, resolution);
+        resolutions.put(dst, resolution);
+    }
+
+    /**
+     * Drops the resolutions of a host and of the destinations routed through it.
+     *
+     * @param ip host IP address
+     */
+    synchronized void invalidateHost(IpAddress ip) {
+        generation.incrementAndGet();
+        resolutions.invalidate(ip);
+        Set<IpAddress> dsts = byNextHop.get(ip);
+        if (dsts != null) {
+            // Copied, as the removal listener takes them out of the index
+            resolutions.invalidateAll(new ArrayList<>(dsts));
+        }
+    }
+
+    /**
+     * Drops the resolutions of the destinations within a route prefix. Those
+     * were resolved through the prefix itself, a more specific one, or a less
+     * specific one that the prefix now overrides.
+     *
+     * @param prefix route prefix
+     */
+    synchronized void invalidatePrefix(IpPrefix prefix) {
+        generation.incrementAndGet();
+        List<IpAddress> dsts = new ArrayList<>();
+        byPrefix.forEach((routePrefix, routeDsts) -> {
+            if (prefix.contains(routePrefix)) {
+                dsts.addAll(routeDsts);
+            } else if (routePrefix.contains(prefix)) {
+                routeDsts.stream().filter(prefix::contains).forEach(dsts::add);
+            }
+        });
+        resolutions.invalidateAll(dsts);
+    }
+
+    synchronized void clear() {
+        generation.incrementAndGet();
+        resolutions.invalidateAll();
+        byNextHop.clear();
+        byPrefix.clear();
+    }
+
+    int size() {
+        return (int) resolutions.size();
+    }
+
+    private synchronized void removed(RemovalNotification<IpAddress, Resolution> notification) {
+        // A replaced entry, or one evicted just before put() cached it again, was unindexed by put() already
+        if (notification.getCause() != RemovalCause.REPLACED
+            && resolutions.asMap().get(notification.getKey()) == null) {
+            unindex(notification.getKey(), notification.getValue());
+        }
+    }
+
+    private void index(IpAddress dst, Resolution resolution) {
+        if (resolution.route() != null) {
+            byNextHop.computeIfAbsent(resolution.nextHop(), k -> Sets.newHashSet()).add(dst);
+            byPrefix.computeIfAbsent(resolution.route().prefix(), k -> Sets.newHashSet()).add(dst);
+        }
+    }
+
+    private void unindex(IpAddress dst, Resolution resolution) {
+        if (resolution.route() != null) {
+            unindex(byNextHop, resolution.nextHop(), dst);
+            unindex(byPrefix, resolution.route().prefix(), dst);
+        }
+    }
+
+    private static <K> void unindex(Map<K, Set<IpAddress>> index, K key, IpAddress dst) {
+        Set<IpAddress> dsts = index.get(key);
+        if (dsts != null && dsts.remove(dst) && dsts.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Forwarding resolution of one destination.
+     */
+    static final class Resolution {
+        private final MacAddress mac;
+        private final ConnectPoint egress;
+        private final ResolvedRoute route;
+
+        /**
+         * Creates a resolution.
+         *
+         * @param mac MAC address of the host or next hop
+         * @param egress connect point of the host or the next hop's interface
+         * @param route route to the destination, or null if the host is attached
+         */
+        Resolution(MacAddress mac, ConnectPoint egress, ResolvedRoute route) {
+            this.mac = mac;
+            this.egress = egress;
+            this.route = route;
+        }
+
+        MacAddress mac() {
+            return mac;
+        }
+
+        ConnectPoint egress() {
+            return egress;
+        }
+
+        ResolvedRoute route() {
+            return route;
+        }
+
+        IpAddress nextHop() {
+            return route == null ? null : route.nextHop();
+        }
+    }
+}
@@ -28,4 +28,8 @@ public class RouterConfig extends Config<ApplicationId> {
   public List<IpAddress> peers() {
       return getList("peers", IpAddress::valueOf, null);
   }
+
+  public boolean aggregateRoutes() {
+    return get("aggregate-routes", false);
+  }
 }
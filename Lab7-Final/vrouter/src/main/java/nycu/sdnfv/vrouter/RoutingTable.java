@@ -0,0 +1,422 @@
+package nycu.sdnfv.vrouter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.net.topology.TopologyVertex;
+
+/**
+ * Longest-prefix-match forwarding of BGP routes, programmed into the
+ * switches through flow objectives.
+ * <p>
+ * Every device gets one rule per prefix, matching the prefix at a priority
+ * that grows with its length, and pointing at a next objective. Devices with
+ * next hops attached forward to those next hops, rewriting the MACs on the way
+ * out; other devices forward on their ports on the shortest paths to the
+ * nearest such devices. Each hop gets strictly closer to a next hop, so the
+ * paths are loop-free.
+ * <p>
+ * Where the pipeliner of a device hashes across the treatments of a next
+ * objective, the next objective holds one bucket per equal-cost choice. ONOS's
+ * default single-table pipeliner, which the OVS driver uses, keeps the first
+ * treatment only, so there each prefix takes one of the choices, picked by its
+ * hash, and the prefixes are spread over them instead.
+ * <p>
+ * Next objectives are shared per device by the prefixes with the same buckets
+ * and are never edited: the single-table pipeliner ignores bucket updates and
+ * copies the treatment into the rule when the rule is installed. When the
+ * buckets change, the prefixes are pointed at a new next objective, and the old
+ * one is removed once no rule points at it.
+ */
+class RoutingTable {
+
+    private final ApplicationId appId;
+    private final TopologyService topologyService;
+    private final FlowObjectiveService flowObjectiveService;
+    private final Predicate<DeviceId> hashing;
+
+    private final Map<IpPrefix, Route> routes = Maps.newHashMap();
+    private final Map<GroupKey, Group> groups = Maps.newHashMap();
+
+    /**
+     * Creates a routing table.
+     *
+     * @param appId application programming the routes
+     * @param topologyService topology service
+     * @param flowObjectiveService flow objective service
+     * @param hashing tells whether the pipeliner of a device hashes across the
+     *                treatments of a next objective
+     */
+    RoutingTable(ApplicationId appId, TopologyService topologyService,
+                 FlowObjectiveService flowObjectiveService, Predicate<DeviceId> hashing) {
+        this.appId = appId;
+        this.topologyService = topologyService;
+        this.flowObjectiveService = flowObjectiveService;
+        this.hashing = hashing;
+    }
+
+    synchronized boolean contains(IpPrefix prefix) {
+        return routes.containsKey(prefix);
+    }
+
+    synchronized Set<IpPrefix> prefixes() {
+        return Sets.newHashSet(routes.keySet());
+    }
+
+    /**
+     * Returns the prefixes routed through a next hop.
+     *
+     * @param nextHop next hop IP address
+     * @return prefixes
+     */
+    synchronized Set<IpPrefix> prefixesVia(IpAddress nextHop) {
+        Set<IpPrefix> prefixes = Sets.newHashSet();
+        routes.forEach((prefix, route) -> {
+            if (route.nextHops.contains(nextHop)) {
+                prefixes.add(prefix);
+            }
+        });
+        return prefixes;
+    }
+
+    synchronized int groupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Installs or updates the forwarding of a prefix. Rules and next objectives
+     * that are already in place are left alone, so installing the same route
+     * again only re-points the rules of the devices whose buckets changed.
+     *
+     * @param prefix route prefix
+     * @param nextHops resolved next hops
+     * @param srcMac MAC address the router sends from
+     * @param priority priority of the prefix rules
+     */
+    synchronized void install(IpPrefix prefix, List<NextHop> nextHops, MacAddress srcMac, int priority) {
+        install(prefix, nextHops, srcMac, priority, topologyService.currentTopology(), Maps.newHashMap());
+    }
+
+    /**
+     * Follows a topology change: recomputes the buckets of the prefixes and
+     * points them at the devices that reach their next hops now. The
+     * buckets are computed once per device and set of next hops, however many
+     * prefixes share them.
+     *
+     * @param srcMac MAC address the router sends from
+     */
+    synchronized void refresh(MacAddress srcMac) {
+        Topology topology = topologyService.currentTopology();
+        Map<Set<NextHop>, Map<DeviceId, List<TrafficTreatment>>> buckets = Maps.newHashMap();
+        for (Map.Entry<IpPrefix, Route> entry : new ArrayList<>(routes.entrySet())) {
+            Route route = entry.getValue();
+            install(entry.getKey(), route.resolved, srcMac, route.priority, topology, buckets);
+        }
+    }
+
+    /**
+     * Installs a prefix, taking the buckets from the cache when another prefix
+     * with the same next hops computed them already.
+     */
+    private void install(IpPrefix prefix, List<NextHop> nextHops, MacAddress srcMac, int priority,
+                         Topology topology, Map<Set<NextHop>, Map<DeviceId, List<TrafficTreatment>>> cache) {
+        Set<IpAddress> nextHopIps = new TreeSet<>();
+        nextHops.forEach(nextHop -> nextHopIps.add(nextHop.ip()));
+        Map<DeviceId, List<TrafficTreatment>> deviceBuckets =
+            cache.computeIfAbsent(new HashSet<>(nextHops), k -> Maps.newHashMap());
+
+        Route previous = routes.get(prefix);
+        Route route = new Route(nextHopIps, nextHops, priority);
+        for (TopologyVertex vertex : topologyService.getGraph(topology).getVertexes()) {
+            DeviceId deviceId = vertex.deviceId();
+            List<TrafficTreatment> buckets = deviceBuckets.computeIfAbsent(deviceId,
+                d -> buckets(topology, d, nextHops, srcMac));
+            if (buckets.isEmpty()) {
+                continue;
+            }
+            if (buckets.size() > 1 && !hashing.test(deviceId)) {
+                buckets = Collections.singletonList(buckets.get(Math.floorMod(prefix.hashCode(), buckets.size())));
+            }
+
+            GroupKey key = new GroupKey(deviceId, new HashSet<>(buckets));
+            Group group = groups.get(key);
+            if (group == null) {
+                group = addGroup(key, buckets);
+            }
+
+            ForwardingObjective rule = previous == null ? null : previous.rules.get(deviceId);
+            if (rule == null || rule.nextId() != group.next.id() || rule.priority() != priority) {
+                rule = DefaultForwardingObjective.builder()
+                    .withSelector(selector(prefix))
+                    .nextStep(group.next.id())
+                    .withPriority(priority)
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(appId)
+                    .makePermanent()
+                    .add();
+                // Same selector and priority, so the old rule is replaced in place
+                flowObjectiveService.forward(deviceId, rule);
+            }
+            route.rules.put(deviceId, rule);
+            route.groups.put(deviceId, key);
+            group.refs++;
+        }
+
+        routes.put(prefix, route);
+        if (previous != null) {
+            release(prefix, previous, route);
+        }
+    }
+
+    /**
+     * Removes the forwarding of a prefix.
+     *
+     * @param prefix route prefix
+     * @return true if the prefix was installed
+     */
+    synchronized boolean remove(IpPrefix prefix) {
+        Route previous = routes.remove(prefix);
+        if (previous == null) {
+            return false;
+        }
+        release(prefix, previous, null);
+        return true;
+    }
+
+    synchronized void clear() {
+        for (IpPrefix prefix : new ArrayList<>(routes.keySet())) {
+            remove(prefix);
+        }
+    }
+
+    /**
+     * Drops the rules of a replaced route that the new route does not reuse,
+     * and the next objectives nothing points at anymore. The new route has
+     * re-pointed its rules already, so no rule is left on a removed next.
+     *
+     * @param prefix route prefix
+     * @param previous replaced route
+     * @param current new route, or null if the prefix was removed
+     */
+    private void release(IpPrefix prefix, Route previous, Route current) {
+        previous.rules.forEach((deviceId, rule) -> {
+            boolean replaced = current != null && current.rules.containsKey(deviceId);
+            if (!replaced) {
+                flowObjectiveService.forward(deviceId, rule.copy().remove());
+            }
+
+            GroupKey key = previous.groups.get(deviceId);
+            Group group = groups.get(key);
+            if (group != null && --group.refs == 0) {
+                groups.remove(key);
+                flowObjectiveService.next(deviceId, group.next.copy().remove());
+            }
+        });
+    }
+
+    private Group addGroup(GroupKey key, List<TrafficTreatment> buckets) {
+        NextObjective.Builder next = DefaultNextObjective.builder()
+            .withId(flowObjectiveService.allocateNextId())
+            .withType(buckets.size() > 1 ? NextObjective.Type.HASHED : NextObjective.Type.SIMPLE)
+            .fromApp(appId)
+            .makePermanent();
+        buckets.forEach(next::addTreatment);
+        Group group = new Group(next.add());
+        flowObjectiveService.next(key.deviceId, group.next);
+        groups.put(key, group);
+        return group;
+    }
+
+    private TrafficSelector selector(IpPrefix prefix) {
+        return DefaultTrafficSelector.builder()
+            .matchEthType(Ethernet.TYPE_IPV4)
+            .matchIPDst(prefix)
+            .build();
+    }
+
+    /**
+     * Computes the group buckets of a device.
+     *
+     * @param topology current topology
+     * @param deviceId device
+     * @param nextHops resolved next hops
+     * @param srcMac MAC address the router sends from
+     * @return one treatment per bucket, empty if no next hop is reachable
+     */
+    private List<TrafficTreatment> buckets(Topology topology, DeviceId deviceId,
+                                           List<NextHop> nextHops, MacAddress srcMac) {
+        List<TrafficTreatment> buckets = new ArrayList<>();
+        Set<DeviceId> egressDevices = Sets.newHashSet();
+        for (NextHop nextHop : nextHops) {
+            egressDevices.add(nextHop.egress().deviceId());
+            if (nextHop.egress().deviceId().equals(deviceId)) {
+                buckets.add(DefaultTrafficTreatment.builder()
+                    .setEthSrc(srcMac)
+                    .setEthDst(nextHop.mac())
+                    .setOutput(nextHop.egress().port())
+                    .build());
+            }
+        }
+        if (!buckets.isEmpty()) {
+            return buckets;
+        }
+
+        // Spread over every first hop of the shortest paths to the nearest egress devices
+        int nearest = Integer.MAX_VALUE;
+        Set<PortNumber> ports = Sets.newLinkedHashSet();
+        for (DeviceId egressDevice : egressDevices) {
+            for (Path path : topologyService.getPaths(topology, deviceId, egressDevice)) {
+                int hops = path.links().size();
+                if (hops < nearest) {
+                    nearest = hops;
+                    ports.clear();
+                }
+                if (hops == nearest) {
+                    ports.add(path.src().port());
+                }
+            }
+        }
+        for (PortNumber port : ports) {
+            buckets.add(DefaultTrafficTreatment.builder().setOutput(port).build());
+        }
+        return buckets;
+    }
+
+    private static final class Route {
+        private final Set<IpAddress> nextHops;
+        private final List<NextHop> resolved;
+        private final int priority;
+        private final Map<DeviceId, ForwardingObjective> rules = Maps.newHashMap();
+        private final Map<DeviceId, GroupKey> groups = Maps.newHashMap();
+
+        private Route(Set<IpAddress> nextHops, List<NextHop> resolved, int priority) {
+            this.nextHops = nextHops;
+            this.resolved = resolved;
+            this.priority = priority;
+        }
+    }
+
+    private static final class Group {
+        private final NextObjective next;
+        private int refs;
+
+        private Group(NextObjective next) {
+            this.next = next;
+        }
+    }
+
+    /**
+     * Next objectives are shared per device by the prefixes with the same buckets.
+     */
+    private static final class GroupKey {
+        private final DeviceId deviceId;
+        private final Set<TrafficTreatment> buckets;
+
+        private GroupKey(DeviceId deviceId, Set<TrafficTreatment> buckets) {
+            this.deviceId = deviceId;
+            this.buckets = buckets;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, buckets);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof GroupKey)) {
+                return false;
+            }
+            GroupKey that = (GroupKey) obj;
+            return deviceId.equals(that.deviceId) && buckets.equals(that.buckets);
+        }
+    }
+
+    /**
+     * Resolved BGP next hop.
+     */
+    static final class NextHop {
+        private final IpAddress ip;
+        private final MacAddress mac;
+        private final ConnectPoint egress;
+
+        /**
+         * Creates a next hop.
+         *
+         * @param ip next hop IP address
+         * @param mac next hop MAC address
+         * @param egress connect point of the interface facing the next hop
+         */
+        NextHop(IpAddress ip, MacAddress mac, ConnectPoint egress) {
+            this.ip = ip;
+            this.mac = mac;
+            this.egress = egress;
+        }
+
+        IpAddress ip() {
+            return ip;
+        }
+
+        MacAddress mac() {
+            return mac;
+        }
+
+        ConnectPoint egress() {
+            return egress;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ip, mac, egress);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof NextHop)) {
+                return false;
+            }
+            NextHop that = (NextHop) obj;
+            return ip.equals(that.ip) && mac.equals(that.mac) && egress.equals(that.egress);
+        }
+
+        @Override
+        public String toString() {
+            return ip + " (" + mac + ") on " + egress;
+        }
+    }
+}
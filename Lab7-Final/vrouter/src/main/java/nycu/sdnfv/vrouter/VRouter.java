@@ -4,41 +4,75 @@ import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_ADDED;
 import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_UPDATED;
 import static org.onosproject.net.config.basics.SubjectFactories.APP_SUBJECT_FACTORY;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import com.google.common.collect.Maps;
+import org.onlab.packet.ARP;
 import org.onlab.packet.Ethernet;
 import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
 import org.onlab.packet.IpAddress;
 import org.onlab.packet.IpPrefix;
 import org.onlab.packet.MacAddress;
+import org.onlab.util.ItemNotFoundException;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
 import org.onosproject.net.FilteredConnectPoint;
 import org.onosproject.net.Host;
+import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.config.ConfigFactory;
 import org.onosproject.net.config.NetworkConfigEvent;
 import org.onosproject.net.config.NetworkConfigListener;
 import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.driver.Behaviour;
+import org.onosproject.net.driver.DriverService;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.packet.DefaultOutboundPacket;
 import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intent.ConnectivityIntent;
 import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentEvent;
+import org.onosproject.net.intent.IntentListener;
 import org.onosproject.net.intent.IntentService;
+import org.onosproject.net.intent.Key;
 import org.onosproject.net.intent.PointToPointIntent;
 import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
 import org.onosproject.net.intf.InterfaceService;
 import org.onosproject.net.packet.PacketContext;
 import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
 import org.onosproject.routeservice.ResolvedRoute;
+import org.onosproject.routeservice.RouteEvent;
+import org.onosproject.routeservice.RouteListener;
 import org.onosproject.routeservice.RouteService;
+import org.onosproject.routeservice.RouteTableId;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -49,9 +83,27 @@ import org.slf4j.LoggerFactory;
 
 @Component(immediate = true)
 public class VRouter {
+    /* Route rules sit below host intents and are ordered by prefix length. */
+    private static final int ROUTE_PRIORITY_BASE = 10;
+
+    /* Packets held per unresolved next hop, and how long its ARP probe may go unanswered. */
+    private static final int MAX_PENDING_PACKETS = 16;
+    private static final int PROBE_TIMEOUT = 1000;
+
+    /* Destinations whose resolution is cached; a scan evicts the least recently used. */
+    private static final int MAX_RESOLUTIONS = 4096;
+
+    /* Pipeliner of the default and OVS drivers, which keeps the first treatment of a next objective only. */
+    private static final String SINGLE_TABLE_PIPELINER = "org.onosproject.driver.pipeline.DefaultSingleTablePipeline";
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final RouterConfigListener cfgListener = new RouterConfigListener();
+    private final InternalRouteListener routeListener = new InternalRouteListener();
+    private final InternalIntentListener intentListener = new InternalIntentListener();
+    private final InternalHostListener hostListener = new InternalHostListener();
+    private final InternalInterfaceListener intfListener = new InternalInterfaceListener();
+    private final InternalTopologyListener topologyListener = new InternalTopologyListener();
 
     private final ConfigFactory<ApplicationId, RouterConfig> factory = new ConfigFactory<ApplicationId, RouterConfig>(
         APP_SUBJECT_FACTORY, RouterConfig.class, "router") {
@@ -82,6 +134,15 @@ public class VRouter {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected InterfaceService intfService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected TopologyService topologyService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected FlowObjectiveService flowObjectiveService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DriverService driverService;
+
     private ApplicationId appId;
 
     private PacketProcessor processor = new VRouterProcessor();
@@ -91,15 +152,26 @@ public class VRouter {
     private IpAddress vIP;
     private MacAddress vMac;
     private List<IpAddress> peers;
+    private boolean aggregateRoutes;
 
     private List<MacAddress> installedMacs = new ArrayList<>();
-    private List<Intent> installedIntents = new ArrayList<>();
+    private Map<Key, Intent> installedIntents = Maps.newConcurrentMap();
+    private Map<IpAddress, List<Intent>> peerIntents = Maps.newConcurrentMap();
+    private final ResolutionCache resolutions = new ResolutionCache(MAX_RESOLUTIONS);
+    private final PendingPackets pendingPackets = new PendingPackets(PROBE_TIMEOUT, MAX_PENDING_PACKETS);
+    private RoutingTable routingTable;
 
     @Activate
     protected void activate() {
         appId = coreService.registerApplication("nycu.sdnfv.vrouter");
+        routingTable = new RoutingTable(appId, topologyService, flowObjectiveService, this::hashes);
         cfgService.addListener(cfgListener);
         cfgService.registerConfigFactory(factory);
+        routeService.addListener(routeListener);
+        intentService.addListener(intentListener);
+        hostService.addListener(hostListener);
+        intfService.addListener(intfListener);
+        topologyService.addListener(topologyListener);
 
         packetService.addProcessor(processor, PacketProcessor.director(6));
         requestPackets();
@@ -110,12 +182,19 @@ public class VRouter {
     protected void deactivate() {
         cfgService.removeListener(cfgListener);
         cfgService.unregisterConfigFactory(factory);
+        routeService.removeListener(routeListener);
+        intentService.removeListener(intentListener);
+        hostService.removeListener(hostListener);
+        intfService.removeListener(intfListener);
+        topologyService.removeListener(topologyListener);
         packetService.removeProcessor(processor);
         cancelPackets();
+        pendingPackets.clear();
 
-        for (Intent intent : installedIntents) {
+        for (Intent intent : installedIntents.values()) {
             intentService.withdraw(intent);
         }
+        routingTable.clear();
 
         log.info("Stopped");
     }
@@ -151,7 +230,12 @@ public class VRouter {
 
             MacAddress srcMac = ethPkt.getSourceMAC();
             MacAddress dstMac = ethPkt.getDestinationMAC();
-            log.info(srcMac + " => " + dstMac);
+            log.debug("{} => {}", srcMac, dstMac);
+
+            if (ethPkt.getEtherType() == Ethernet.TYPE_ARP) {
+                handleArp(context, ethPkt, cp);
+                return;
+            }
 
             if (ethPkt.getEtherType() != Ethernet.TYPE_IPV4) {
                 return;
@@ -160,17 +244,15 @@ public class VRouter {
             IPv4 ipPkt = (IPv4) ethPkt.getPayload();
             IpAddress srcIp = IpAddress.valueOf(ipPkt.getSourceAddress());
             IpAddress dstIp = IpAddress.valueOf(ipPkt.getDestinationAddress());
-            log.info(srcIp + " (" + srcMac + ") => " + dstIp + " (" + dstMac + ")");
+            log.debug("{} ({}) => {} ({})", srcIp, srcMac, dstIp, dstMac);
 
-            MacAddress hostMac = hostService.getHostsByIp(dstIp).stream()
-                .map(Host::mac).findFirst().orElse(null);
-            ConnectPoint hostCp = hostService.getHostsByIp(dstIp).stream()
-                .map(Host::location).findFirst().orElse(null);
+            ResolutionCache.Resolution resolution = resolve(dstIp);
+            if (resolution == null) {
+                return;
+            }
 
-            if (hostMac == null) {
-                log.info("hostMac = null");
-            } else {
-                log.info("hostMac = " + hostMac);
+            if (resolution.route() == null) {
+                log.debug("hostMac = {}", resolution.mac());
 
                 TrafficSelector selector = DefaultTrafficSelector.builder()
                     .matchEthType(Ethernet.TYPE_IPV4)
@@ -179,68 +261,363 @@ public class VRouter {
 
                 TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                     .setEthSrc(vMac)
-                    .setEthDst(hostMac)
+                    .setEthDst(resolution.mac())
                     .build();
 
                 PointToPointIntent intent = PointToPointIntent.builder()
                     .appId(appId)
+                    .key(intentKey(cp, resolution.egress(), selector))
                     .selector(selector)
                     .treatment(treatment)
                     .filteredIngressPoint(new FilteredConnectPoint(cp))
-                    .filteredEgressPoint(new FilteredConnectPoint(hostCp))
+                    .filteredEgressPoint(new FilteredConnectPoint(resolution.egress()))
                     .build();
 
-                intentService.submit(intent);
-                installedIntents.add(intent);
+                submitIntent(intent);
 
                 context.block();
                 return;
             }
 
-            Optional<ResolvedRoute> route = routeService.longestPrefixLookup(dstIp);
-            if (route.isPresent()) {
-                log.info("route not found");
+            IpAddress nextHop = resolution.route().nextHop();
+            if (resolution.mac() == null) {
+                // Hold the packet until the next hop answers, rather than looking it up again per retransmission
+                if (pendingPackets.add(nextHop, cp, ethPkt, System.currentTimeMillis())) {
+                    probeNextHop(nextHop);
+                }
+                context.block();
                 return;
             }
 
-            MacAddress nextHopMac = hostService.getHostsByIp(route.get().nextHop().getIp4Address())
-                .stream().map(Host::mac).findFirst().orElse(null);
-            ConnectPoint egressPoint = intfService.getMatchingInterface(
-                route.get().nextHop().getIp4Address()).connectPoint();
-            log.info("nextHop = " + route.get().nextHop() + " (" + nextHopMac + ")");
+            if (forwardRoute(cp, srcIp, dstIp, resolution)) {
+                context.block();
+            }
+        }
+    }
+
+    /**
+     * Installs forwarding for routed traffic towards its resolved next hop.
+     *
+     * @param ingress connect point the traffic enters on
+     * @param srcIp source IP address
+     * @param dstIp destination IP address
+     * @param resolution resolution of the destination, with a known next hop MAC
+     * @return true if forwarding is installed
+     */
+    private boolean forwardRoute(ConnectPoint ingress, IpAddress srcIp, IpAddress dstIp,
+                                 ResolutionCache.Resolution resolution) {
+        ResolvedRoute route = resolution.route();
+        if (aggregateRoutes) {
+            // Normally installed by the route listener; this covers routes whose next hop was unresolved
+            return routingTable.contains(route.prefix()) || refreshRoute(route.prefix());
+        }
+
+        MacAddress nextHopMac = resolution.mac();
+        ConnectPoint egressPoint = resolution.egress();
+        log.debug("nextHop = {} ({})", route.nextHop(), nextHopMac);
+
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+            .setEthSrc(quaggaMac)
+            .setEthDst(nextHopMac)
+            .build();
+        log.debug("[SDN->External] srcEth: {}, dstEth: {}", quaggaMac, nextHopMac);
+
+        TrafficSelector selector = DefaultTrafficSelector.builder()
+            .matchEthType(Ethernet.TYPE_IPV4)
+            .matchIPSrc(srcIp.toIpPrefix())
+            .matchIPDst(dstIp.toIpPrefix())
+            .build();
+
+        PointToPointIntent intent = PointToPointIntent.builder()
+            .appId(appId)
+            .key(intentKey(ingress, egressPoint, selector))
+            .selector(selector)
+            .treatment(treatment)
+            .filteredIngressPoint(new FilteredConnectPoint(ingress))
+            .filteredEgressPoint(new FilteredConnectPoint(egressPoint))
+            .build();
+
+        submitIntent(intent);
+
+        log.debug("{} => {}, intent = {}", quaggaMac, nextHopMac, intent);
+        return true;
+    }
+
+    /**
+     * Sends an ARP request for a next hop from Quagga's MAC and interface
+     * address, out of the interface facing the next hop.
+     *
+     * @param nextHop next hop IP address
+     */
+    private void probeNextHop(IpAddress nextHop) {
+        Interface intf = intfService.getMatchingInterface(nextHop);
+        if (intf == null || quaggaMac == null || !nextHop.isIp4()) {
+            return;
+        }
+        IpAddress senderIp = intf.ipAddressesList().stream()
+            .filter(intfIp -> intfIp.subnetAddress().contains(nextHop))
+            .map(InterfaceIpAddress::ipAddress)
+            .findFirst()
+            .orElse(null);
+        if (senderIp == null) {
+            return;
+        }
+
+        Ethernet request = ARP.buildArpRequest(quaggaMac.toBytes(), senderIp.toOctets(), nextHop.toOctets(),
+                intf.vlan().toShort());
+        ConnectPoint cp = intf.connectPoint();
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+        packetService.emit(new DefaultOutboundPacket(cp.deviceId(), treatment, ByteBuffer.wrap(request.serialize())));
+        log.info("Probe nextHop = {} on {}", nextHop, cp);
+    }
+
+    /**
+     * Forwards the packets held for a next hop that just got resolved.
+     *
+     * @param nextHop next hop IP address
+     */
+    private void flushPending(IpAddress nextHop) {
+        List<PendingPackets.Packet> packets = pendingPackets.flush(nextHop);
+        for (PendingPackets.Packet packet : packets) {
+            Ethernet ethPkt = packet.ethPkt();
+            IPv4 ipPkt = (IPv4) ethPkt.getPayload();
+            IpAddress srcIp = IpAddress.valueOf(ipPkt.getSourceAddress());
+            IpAddress dstIp = IpAddress.valueOf(ipPkt.getDestinationAddress());
 
+            ResolutionCache.Resolution resolution = resolve(dstIp);
+            if (resolution == null || resolution.route() == null || resolution.mac() == null
+                    || !forwardRoute(packet.ingress(), srcIp, dstIp, resolution)) {
+                continue;
+            }
+
+            // The intent takes a while to install, so the held packet goes straight out of the egress port
+            ethPkt.setSourceMACAddress(quaggaMac).setDestinationMACAddress(resolution.mac());
+            ConnectPoint cp = resolution.egress();
+            TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+            packetService.emit(new DefaultOutboundPacket(cp.deviceId(), treatment,
+                    ByteBuffer.wrap(ethPkt.serialize())));
+        }
+        if (!packets.isEmpty()) {
+            log.info("nextHop = {} resolved, flushed {} packets", nextHop, packets.size());
+        }
+    }
+
+    /**
+     * Resolves where packets to a destination go, from the cache when possible.
+     *
+     * @param dstIp destination IP address
+     * @return resolution, with a null MAC if the next hop is not resolved yet,
+     *         or null if neither a host nor a route leads there
+     */
+    private ResolutionCache.Resolution resolve(IpAddress dstIp) {
+        ResolutionCache.Resolution resolution = resolutions.get(dstIp);
+        if (resolution != null) {
+            return resolution;
+        }
+
+        long generation = resolutions.generation();
+        Host host = hostService.getHostsByIp(dstIp).stream().findFirst().orElse(null);
+        if (host != null) {
+            resolution = new ResolutionCache.Resolution(host.mac(), host.location(), null);
+        } else {
+            Optional<ResolvedRoute> route = routeService.longestPrefixLookup(dstIp);
+            if (!route.isPresent()) {
+                log.debug("route to {} not found", dstIp);
+                return null;
+            }
+
+            IpAddress nextHop = route.get().nextHop();
+            MacAddress nextHopMac = hostService.getHostsByIp(nextHop).stream()
+                .map(Host::mac).findFirst().orElse(null);
+            Interface egressIntf = intfService.getMatchingInterface(nextHop);
+            if (egressIntf == null) {
+                log.debug("nextHop = {} has no interface", nextHop);
+                return null;
+            }
             if (nextHopMac == null) {
-                return;
+                // Not cached, the packet waits for the next hop's host event instead
+                log.debug("nextHop = {} is not resolved", nextHop);
+                return new ResolutionCache.Resolution(null, egressIntf.connectPoint(), route.get());
+            }
+            resolution = new ResolutionCache.Resolution(nextHopMac, egressIntf.connectPoint(), route.get());
+        }
+
+        resolutions.put(dstIp, resolution, generation);
+        return resolution;
+    }
+
+    /**
+     * Answers ARP requests for the virtual gateway and for the Quagga
+     * interface addresses at the edge switch the request came in on.
+     *
+     * @param context packet context
+     * @param ethPkt parsed ARP frame
+     * @param cp connect point the request was received on
+     */
+    private void handleArp(PacketContext context, Ethernet ethPkt, ConnectPoint cp) {
+        ARP arpPkt = (ARP) ethPkt.getPayload();
+        if (arpPkt.getOpCode() != ARP.OP_REQUEST) {
+            return;
+        }
+
+        Ip4Address targetIp = Ip4Address.valueOf(arpPkt.getTargetProtocolAddress());
+        MacAddress targetMac = gatewayMac(targetIp);
+        if (targetMac == null) {
+            return;
+        }
+
+        Ethernet reply = ARP.buildArpReply(targetIp, targetMac, ethPkt);
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder().setOutput(cp.port()).build();
+        packetService.emit(new DefaultOutboundPacket(cp.deviceId(), treatment, ByteBuffer.wrap(reply.serialize())));
+        log.info("ARP {} is at {}, answered on {}", targetIp, targetMac, cp);
+        context.block();
+    }
+
+    /**
+     * Returns the MAC address the router answers for an IP address.
+     *
+     * @param ip IP address
+     * @return virtual MAC for the virtual IP, Quagga's MAC for an interface
+     *         address, or null if the address is not the router's
+     */
+    private MacAddress gatewayMac(IpAddress ip) {
+        if (vMac != null && ip.equals(vIP)) {
+            return vMac;
+        }
+        if (quaggaMac != null) {
+            boolean interfaceIp = intfService.getInterfaces().stream()
+                .flatMap(intf -> intf.ipAddressesList().stream())
+                .anyMatch(intfIp -> intfIp.ipAddress().equals(ip));
+            if (interfaceIp) {
+                return quaggaMac;
             }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a deterministic intent key, so the same flow always maps to the
+     * same intent regardless of how many packets were punted for it.
+     *
+     * @param ingress ingress connect point
+     * @param egress egress connect point
+     * @param selector traffic selector
+     * @return intent key
+     */
+    private Key intentKey(ConnectPoint ingress, ConnectPoint egress, TrafficSelector selector) {
+        String criteria = selector.criteria().stream()
+            .map(Object::toString)
+            .sorted()
+            .collect(Collectors.joining(","));
+        return Key.of(ingress + "->" + egress + "|" + criteria, appId);
+    }
 
-            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                .setEthSrc(quaggaMac)
-                .setEthDst(nextHopMac)
-                .build();
-            log.info("[SDN->External] srcEth: {}, dstEth: {}", quaggaMac, nextHopMac);
-
-            TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchEthType(Ethernet.TYPE_IPV4)
-                .matchIPSrc(srcIp.toIpPrefix())
-                .matchIPDst(dstIp.toIpPrefix())
-                .build();
-
-            PointToPointIntent intent = PointToPointIntent.builder()
-                .appId(appId)
-                .selector(selector)
-                .treatment(treatment)
-                .filteredIngressPoint(new FilteredConnectPoint(cp))
-                .filteredEgressPoint(new FilteredConnectPoint(egressPoint))
-                .build();
-
-            intentService.submit(intent);
-            installedIntents.add(intent);
-
-            log.info(quaggaMac + " => " + nextHopMac + ", intent = " + intent);
-            context.block();
+    /**
+     * Submits a keyed intent unless the same intent is already submitted and
+     * has not been withdrawn or failed. The key does not cover the treatment,
+     * so an intent rewriting to a MAC address that changed replaces the
+     * submitted one in place.
+     *
+     * @param intent keyed intent
+     */
+    private void submitIntent(Intent intent) {
+        Intent previous = installedIntents.putIfAbsent(intent.key(), intent);
+        if (previous != null && (sameTreatment(previous, intent)
+                || !installedIntents.replace(intent.key(), previous, intent))) {
+            return;
+        }
+        intentService.submit(intent);
+    }
+
+    private static boolean sameTreatment(Intent a, Intent b) {
+        return a instanceof ConnectivityIntent && b instanceof ConnectivityIntent
+            && ((ConnectivityIntent) a).treatment().equals(((ConnectivityIntent) b).treatment());
+    }
+
+    /**
+     * Submits a batch of keyed intents. The intent manager accumulates
+     * submissions into batches, so the whole set is queued here back to back
+     * and compiled together rather than interleaved with withdrawals.
+     *
+     * @param intents keyed intents
+     */
+    private void submitIntents(Collection<Intent> intents) {
+        for (Intent intent : intents) {
+            submitIntent(intent);
+        }
+        if (!intents.isEmpty()) {
+            log.info("Submitted {} intents", intents.size());
         }
     }
 
+    private void withdrawIntents(Collection<Intent> intents) {
+        for (Intent intent : intents) {
+            installedIntents.remove(intent.key(), intent);
+            intentService.withdraw(intent);
+        }
+    }
+
+    private void withdrawRoute(IpPrefix prefix) {
+        if (routingTable.remove(prefix)) {
+            log.info("Route {} withdrawn", prefix);
+        }
+    }
+
+    /**
+     * Programs the longest-prefix-match forwarding of a prefix over all of its
+     * resolved next hops.
+     *
+     * @param prefix route prefix
+     * @return true if forwarding is installed
+     */
+    private boolean refreshRoute(IpPrefix prefix) {
+        List<RoutingTable.NextHop> nextHops = resolveNextHops(routeService.getAllResolvedRoutes(prefix));
+        if (nextHops.isEmpty()) {
+            withdrawRoute(prefix);
+            return false;
+        }
+        routingTable.install(prefix, nextHops, quaggaMac, ROUTE_PRIORITY_BASE + prefix.prefixLength());
+        log.info("Route {} via {}", prefix, nextHops);
+        return true;
+    }
+
+    /**
+     * Tells whether the pipeliner of a device hashes across the treatments of
+     * a next objective.
+     *
+     * @param deviceId device
+     * @return false if the device has no driver or a single-table pipeliner
+     */
+    private boolean hashes(DeviceId deviceId) {
+        try {
+            Class<? extends Behaviour> pipeliner = driverService.getDriver(deviceId).implementation(Pipeliner.class);
+            return pipeliner != null && !pipeliner.getName().equals(SINGLE_TABLE_PIPELINER);
+        } catch (ItemNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves the MAC address and egress point of the next hops of a prefix.
+     *
+     * @param routes routes to the prefix
+     * @return distinct resolved next hops
+     */
+    private List<RoutingTable.NextHop> resolveNextHops(Collection<ResolvedRoute> routes) {
+        Set<RoutingTable.NextHop> nextHops = new LinkedHashSet<>();
+        for (ResolvedRoute route : routes) {
+            MacAddress nextHopMac = hostService.getHostsByIp(route.nextHop()).stream()
+                .map(Host::mac).findFirst().orElse(null);
+            Interface egressIntf = intfService.getMatchingInterface(route.nextHop());
+            if (nextHopMac != null && egressIntf != null) {
+                nextHops.add(new RoutingTable.NextHop(route.nextHop(), nextHopMac, egressIntf.connectPoint()));
+            } else {
+                log.info("nextHop = {} ({}) is not resolved", route.nextHop(), nextHopMac);
+            }
+        }
+        return new ArrayList<>(nextHops);
+    }
+
     private class RouterConfigListener implements NetworkConfigListener {
         @Override
         public void event(NetworkConfigEvent event) {
@@ -256,58 +633,219 @@ public class VRouter {
                 return;
             }
 
+            ConnectPoint oldQuagga = quagga;
+            MacAddress oldQuaggaMac = quaggaMac;
+            MacAddress oldVMac = vMac;
+            boolean oldAggregateRoutes = aggregateRoutes;
+
             quagga = config.quagga();
             quaggaMac = config.quaggaMac();
             vIP = config.vIP();
             vMac = config.vMac();
-            peers = config.peers();
+            peers = config.peers() == null ? Collections.emptyList() : config.peers();
+            aggregateRoutes = config.aggregateRoutes();
 
-            for (Intent intent : installedIntents) {
-                intentService.withdraw(intent);
+            // Flow intents carry the MACs in their treatment; route intents are replaced in place below
+            boolean macChanged = !Objects.equals(oldQuaggaMac, quaggaMac) || !Objects.equals(oldVMac, vMac);
+            if (macChanged) {
+                withdrawFlowIntents();
             }
 
+            // Peering intents all go through the Quagga port, so moving it invalidates every peer
+            boolean quaggaChanged = !Objects.equals(oldQuagga, quagga);
+            for (IpAddress peerAddr : new ArrayList<>(peerIntents.keySet())) {
+                if (quaggaChanged || !peers.contains(peerAddr)) {
+                    List<Intent> intents = peerIntents.remove(peerAddr);
+                    withdrawIntents(intents);
+                    log.info("Peer {} removed", peerAddr);
+                }
+            }
+
+            List<Intent> pending = new ArrayList<>();
             for (IpAddress peerAddr : peers) {
-                ConnectPoint interfaceCp = intfService.getMatchingInterface(peerAddr).connectPoint();
-                if (interfaceCp == null) {
+                if (peerIntents.containsKey(peerAddr)) {
+                    continue;
+                }
+                List<Intent> intents = buildPeerIntents(peerAddr);
+                if (intents.isEmpty()) {
                     continue;
                 }
+                peerIntents.put(peerAddr, intents);
+                pending.addAll(intents);
+                log.info("Peer {} added", peerAddr);
+            }
+            submitIntents(pending);
 
-                IpAddress interfaceIp = intfService.getInterfacesByPort(interfaceCp).stream()
-                    .map(Interface::ipAddressesList)
-                    .flatMap(List::stream)
-                    .findFirst()
-                    .orElse(null)
-                    .ipAddress();
+            if (aggregateRoutes && (macChanged || !oldAggregateRoutes)) {
+                for (RouteTableId tableId : routeService.getRouteTables()) {
+                    routeService.getResolvedRoutes(tableId).forEach(route -> refreshRoute(route.prefix()));
+                }
+            } else if (!aggregateRoutes && oldAggregateRoutes) {
+                routingTable.prefixes().forEach(VRouter.this::withdrawRoute);
+            }
+        }
+    }
 
-                // Outgoing
-                TrafficSelector.Builder outgoingSelector = DefaultTrafficSelector.builder()
-                    .matchEthType(Ethernet.TYPE_IPV4)
-                    .matchIPDst(IpPrefix.valueOf(peerAddr, 32));
+    /**
+     * Builds the intents carrying BGP traffic between Quagga and a peer.
+     *
+     * @param peerAddr peer address
+     * @return outgoing and incoming intents, or an empty list if the peer's interface is unknown
+     */
+    private List<Intent> buildPeerIntents(IpAddress peerAddr) {
+        Interface peerIntf = intfService.getMatchingInterface(peerAddr);
+        if (peerIntf == null) {
+            log.warn("No interface for peer {}", peerAddr);
+            return Collections.emptyList();
+        }
+        ConnectPoint interfaceCp = peerIntf.connectPoint();
+
+        IpAddress interfaceIp = intfService.getInterfacesByPort(interfaceCp).stream()
+            .map(Interface::ipAddressesList)
+            .flatMap(List::stream)
+            .findFirst()
+            .orElse(null)
+            .ipAddress();
+
+        // Outgoing
+        TrafficSelector outgoingSelector = DefaultTrafficSelector.builder()
+            .matchEthType(Ethernet.TYPE_IPV4)
+            .matchIPDst(IpPrefix.valueOf(peerAddr, 32))
+            .build();
+
+        PointToPointIntent outgoingIntent = PointToPointIntent.builder()
+            .appId(appId)
+            .key(intentKey(quagga, interfaceCp, outgoingSelector))
+            .selector(outgoingSelector)
+            .filteredEgressPoint(new FilteredConnectPoint(interfaceCp))
+            .filteredIngressPoint(new FilteredConnectPoint(quagga))
+            .build();
+
+        // Incoming
+        TrafficSelector incomingSelector = DefaultTrafficSelector.builder()
+            .matchEthType(Ethernet.TYPE_IPV4)
+            .matchIPDst(IpPrefix.valueOf(interfaceIp, 32))
+            .build();
+
+        PointToPointIntent incomingIntent = PointToPointIntent.builder()
+            .appId(appId)
+            .key(intentKey(interfaceCp, quagga, incomingSelector))
+            .selector(incomingSelector)
+            .filteredEgressPoint(new FilteredConnectPoint(quagga))
+            .filteredIngressPoint(new FilteredConnectPoint(interfaceCp))
+            .build();
+
+        return Arrays.asList(outgoingIntent, incomingIntent);
+    }
 
-                PointToPointIntent outgoingIntent = PointToPointIntent.builder()
-                    .appId(appId)
-                    .selector(outgoingSelector.build())
-                    .filteredEgressPoint(new FilteredConnectPoint(interfaceCp))
-                    .filteredIngressPoint(new FilteredConnectPoint(quagga))
-                    .build();
+    /**
+     * Withdraws the reactive per-flow intents, keeping BGP peering intents.
+     */
+    private void withdrawFlowIntents() {
+        Set<Key> peeringKeys = peerIntents.values().stream()
+            .flatMap(List::stream)
+            .map(Intent::key)
+            .collect(Collectors.toSet());
+        for (Intent intent : installedIntents.values()) {
+            if (!peeringKeys.contains(intent.key())) {
+                installedIntents.remove(intent.key(), intent);
+                intentService.withdraw(intent);
+            }
+        }
+    }
 
-                // Incoming
-                TrafficSelector.Builder incomingSelector = DefaultTrafficSelector.builder()
-                    .matchEthType(Ethernet.TYPE_IPV4)
-                    .matchIPDst(IpPrefix.valueOf(interfaceIp, 32));
+    private class InternalIntentListener implements IntentListener {
+        @Override
+        public boolean isRelevant(IntentEvent event) {
+            return appId != null && appId.equals(event.subject().appId());
+        }
 
-                PointToPointIntent incomingIntent = PointToPointIntent.builder()
-                    .appId(appId)
-                    .selector(incomingSelector.build())
-                    .filteredEgressPoint(new FilteredConnectPoint(quagga))
-                    .filteredIngressPoint(new FilteredConnectPoint(interfaceCp))
-                    .build();
+        @Override
+        public void event(IntentEvent event) {
+            Intent intent = event.subject();
+            switch (event.type()) {
+                case WITHDRAWN:
+                case FAILED:
+                case PURGED:
+                    // Only evict if the entry was not replaced by a newer intent with the same key
+                    installedIntents.remove(intent.key(), intent);
+                    log.debug("Intent {} evicted: {}", intent.key(), event.type());
+                    break;
+                default:
+                    log.debug("Intent {} is {}", intent.key(), event.type());
+                    break;
+            }
+        }
+    }
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            event.subject().ipAddresses().forEach(resolutions::invalidateHost);
+            if (event.prevSubject() != null) {
+                event.prevSubject().ipAddresses().forEach(resolutions::invalidateHost);
+            }
+
+            switch (event.type()) {
+                case HOST_ADDED:
+                case HOST_UPDATED:
+                case HOST_MOVED:
+                    for (IpAddress ip : event.subject().ipAddresses()) {
+                        if (aggregateRoutes && quaggaMac != null) {
+                            // Only the buckets of the next hop's shared groups are rewritten
+                            routingTable.prefixesVia(ip).forEach(VRouter.this::refreshRoute);
+                        }
+                        flushPending(ip);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private class InternalInterfaceListener implements InterfaceListener {
+        @Override
+        public void event(InterfaceEvent event) {
+            // Interfaces rarely change, start over rather than track which next hops they served
+            resolutions.clear();
+        }
+    }
+
+    private class InternalRouteListener implements RouteListener {
+        @Override
+        public void event(RouteEvent event) {
+            resolutions.invalidatePrefix(event.subject().prefix());
+            if (event.prevSubject() != null) {
+                resolutions.invalidatePrefix(event.prevSubject().prefix());
+            }
 
-                intentService.submit(outgoingIntent);
-                installedIntents.add(outgoingIntent);
-                intentService.submit(incomingIntent);
-                installedIntents.add(incomingIntent);
+            if (!aggregateRoutes || quaggaMac == null) {
+                return;
+            }
+
+            switch (event.type()) {
+                case ROUTE_ADDED:
+                case ROUTE_UPDATED:
+                case ROUTE_REMOVED:
+                case ALTERNATIVE_ROUTES_CHANGED:
+                    // Other next hops of the prefix may remain, so start from all of its routes
+                    refreshRoute(event.subject().prefix());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            if (!aggregateRoutes || quaggaMac == null) {
+                return;
             }
+            // Transit buckets follow the shortest paths to the next hops, which moved with the topology
+            routingTable.refresh(quaggaMac);
         }
     }
 }
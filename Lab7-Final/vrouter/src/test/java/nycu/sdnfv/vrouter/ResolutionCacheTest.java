@@ -0,0 +1,92 @@
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.routeservice.ResolvedRoute;
+import org.onosproject.routeservice.Route;
+
+/**
+ * Tests of the resolution cache bound and invalidation.
+ */
+public class ResolutionCacheTest {
+
+    private static final ConnectPoint EGRESS = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+    private static final MacAddress MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final IpAddress HOP_A = IpAddress.valueOf("172.30.1.2");
+    private static final IpAddress HOP_B = IpAddress.valueOf("172.30.2.2");
+
+    @Test
+    public void bounded() {
+        ResolutionCache cache = new ResolutionCache(16);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(IpAddress.valueOf(0x0a000000 + i), routed("10.0.0.0/8", HOP_A), cache.generation());
+        }
+        assertTrue(cache.size() <= 16);
+    }
+
+    @Test
+    public void invalidateHost() {
+        ResolutionCache cache = new ResolutionCache(16);
+        IpAddress host = IpAddress.valueOf("192.168.50.1");
+        IpAddress viaA = IpAddress.valueOf("10.0.1.1");
+        IpAddress viaB = IpAddress.valueOf("10.0.2.1");
+        cache.put(host, new ResolutionCache.Resolution(MAC, EGRESS, null), cache.generation());
+        cache.put(viaA, routed("10.0.1.0/24", HOP_A), cache.generation());
+        cache.put(viaB, routed("10.0.2.0/24", HOP_B), cache.generation());
+
+        cache.invalidateHost(HOP_A);
+        assertNull(cache.get(viaA));
+        assertNotNull(cache.get(viaB));
+        assertNotNull(cache.get(host));
+
+        cache.invalidateHost(host);
+        assertNull(cache.get(host));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidatePrefix() {
+        ResolutionCache cache = new ResolutionCache(16);
+        IpAddress inside = IpAddress.valueOf("10.0.1.1");
+        IpAddress outside = IpAddress.valueOf("10.0.2.1");
+        IpAddress other = IpAddress.valueOf("10.1.0.1");
+        cache.put(inside, routed("10.0.0.0/16", HOP_A), cache.generation());
+        cache.put(outside, routed("10.0.0.0/16", HOP_A), cache.generation());
+        cache.put(other, routed("10.1.0.0/16", HOP_B), cache.generation());
+
+        // A more specific route overrides part of the /16
+        cache.invalidatePrefix(IpPrefix.valueOf("10.0.1.0/24"));
+        assertNull(cache.get(inside));
+        assertNotNull(cache.get(outside));
+        assertNotNull(cache.get(other));
+
+        // Withdrawing a covering route drops the routes within it
+        cache.invalidatePrefix(IpPrefix.valueOf("10.0.0.0/8"));
+        assertNull(cache.get(outside));
+        assertNull(cache.get(other));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void stalePutIgnored() {
+        ResolutionCache cache = new ResolutionCache(16);
+        IpAddress dst = IpAddress.valueOf("10.0.1.1");
+        long generation = cache.generation();
+        cache.invalidateHost(HOP_A);
+        cache.put(dst, routed("10.0.1.0/24", HOP_A), generation);
+        assertNull(cache.get(dst));
+    }
+
+    private static ResolutionCache.Resolution routed(String prefix, IpAddress nextHop) {
+        Route route = new Route(Route.Source.STATIC, IpPrefix.valueOf(prefix), nextHop);
+        return new ResolutionCache.Resolution(MAC, EGRESS, new ResolvedRoute(route, MAC));
+    }
+}
@@ -0,0 +1,224 @@
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Path;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.FlowObjectiveServiceAdapter;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.net.topology.TopologyVertex;
+
+/**
+ * Checks the next objectives and rules that actually get programmed, one
+ * device with two next hops attached.
+ */
+public class RoutingTableTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final MacAddress ROUTER_MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final IpPrefix PREFIX = IpPrefix.valueOf("10.0.1.0/24");
+    private static final RoutingTable.NextHop HOP_A = nextHop("172.30.1.2", "00:00:00:00:00:a2", 1);
+    private static final RoutingTable.NextHop HOP_B = nextHop("172.30.2.2", "00:00:00:00:00:b2", 2);
+
+    private final RecordingFlowObjectiveService objectives = new RecordingFlowObjectiveService();
+
+    @Test
+    public void hashingDeviceProgramsEveryNextHop() {
+        RoutingTable table = table(true);
+        table.install(PREFIX, Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+
+        List<NextObjective> nexts = objectives.nexts(Objective.Operation.ADD);
+        assertEquals(1, nexts.size());
+        assertEquals(NextObjective.Type.HASHED, nexts.get(0).type());
+        assertEquals(2, nexts.get(0).next().size());
+        assertEquals(nexts.get(0).id(), lastForward().nextId().intValue());
+    }
+
+    @Test
+    public void singleTableDeviceProgramsOneNextHopPerPrefix() {
+        RoutingTable table = table(false);
+        for (int i = 0; i < 16; i++) {
+            table.install(IpPrefix.valueOf("10.0." + i + ".0/24"), Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+        }
+
+        List<NextObjective> nexts = objectives.nexts(Objective.Operation.ADD);
+        nexts.forEach(next -> assertEquals(1, next.next().size()));
+        // One next objective per next hop, the prefixes spread over both
+        assertEquals(2, nexts.size());
+        assertEquals(2, table.groupCount());
+        Set<TrafficTreatment> programmed = nexts.stream()
+            .flatMap(next -> next.next().stream()).collect(Collectors.toSet());
+        assertEquals(2, programmed.size());
+    }
+
+    @Test
+    public void alternativeRouteRepointsAtNewNext() {
+        RoutingTable table = table(true);
+        table.install(PREFIX, Collections.singletonList(HOP_A), ROUTER_MAC, 34);
+        NextObjective single = objectives.nexts(Objective.Operation.ADD).get(0);
+        assertEquals(1, single.next().size());
+
+        objectives.recorded.clear();
+        table.install(PREFIX, Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+        assertRepointed(single, 2);
+
+        objectives.recorded.clear();
+        NextObjective both = objectives.lastNext;
+        table.install(PREFIX, Collections.singletonList(HOP_B), ROUTER_MAC, 34);
+        assertRepointed(both, 1);
+        assertEquals(1, table.groupCount());
+    }
+
+    @Test
+    public void movedNextHopRepointsAtNewNext() {
+        RoutingTable table = table(false);
+        table.install(PREFIX, Collections.singletonList(HOP_A), ROUTER_MAC, 34);
+        NextObjective before = objectives.nexts(Objective.Operation.ADD).get(0);
+
+        objectives.recorded.clear();
+        RoutingTable.NextHop moved = nextHop("172.30.1.2", "00:00:00:00:00:a3", 3);
+        table.install(PREFIX, Collections.singletonList(moved), ROUTER_MAC, 34);
+        assertRepointed(before, 1);
+    }
+
+    @Test
+    public void reinstallLeavesRulesAlone() {
+        RoutingTable table = table(true);
+        table.install(PREFIX, Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+
+        objectives.recorded.clear();
+        table.install(PREFIX, Arrays.asList(HOP_B, HOP_A), ROUTER_MAC, 34);
+        table.refresh(ROUTER_MAC);
+        assertTrue(objectives.recorded.isEmpty());
+    }
+
+    @Test
+    public void sharedNextRemovedWithLastPrefix() {
+        RoutingTable table = table(true);
+        IpPrefix other = IpPrefix.valueOf("10.0.2.0/24");
+        table.install(PREFIX, Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+        table.install(other, Arrays.asList(HOP_A, HOP_B), ROUTER_MAC, 34);
+        assertEquals(1, objectives.nexts(Objective.Operation.ADD).size());
+
+        assertTrue(table.remove(PREFIX));
+        assertTrue(objectives.nexts(Objective.Operation.REMOVE).isEmpty());
+        assertTrue(table.remove(other));
+        assertEquals(1, objectives.nexts(Objective.Operation.REMOVE).size());
+        assertEquals(0, table.groupCount());
+        assertFalse(table.remove(other));
+    }
+
+    /**
+     * Checks that the rule moved to a new next objective with the given number
+     * of treatments, and that the old one was removed after it, not edited.
+     */
+    private void assertRepointed(NextObjective old, int treatments) {
+        List<NextObjective> added = objectives.nexts(Objective.Operation.ADD);
+        assertEquals(1, added.size());
+        NextObjective next = added.get(0);
+        assertNotEquals(old.id(), next.id());
+        assertEquals(treatments, next.next().size());
+
+        int addedAt = objectives.recorded.indexOf(next);
+        int forwardAt = objectives.recorded.indexOf(lastForward());
+        int removedAt = objectives.recorded.indexOf(objectives.nexts(Objective.Operation.REMOVE).get(0));
+        assertEquals(next.id(), lastForward().nextId().intValue());
+        assertTrue(addedAt < forwardAt && forwardAt < removedAt);
+        assertEquals(old.id(), objectives.nexts(Objective.Operation.REMOVE).get(0).id());
+
+        for (Objective objective : objectives.recorded) {
+            assertNotEquals(Objective.Operation.ADD_TO_EXISTING, objective.op());
+            assertNotEquals(Objective.Operation.REMOVE_FROM_EXISTING, objective.op());
+        }
+    }
+
+    private ForwardingObjective lastForward() {
+        ForwardingObjective last = null;
+        for (Objective objective : objectives.recorded) {
+            if (objective instanceof ForwardingObjective && objective.op() == Objective.Operation.ADD) {
+                last = (ForwardingObjective) objective;
+            }
+        }
+        return last;
+    }
+
+    private RoutingTable table(boolean hashing) {
+        return new RoutingTable(new DefaultApplicationId(1, "nycu.sdnfv.vrouter"),
+                                new SingleDeviceTopologyService(), objectives, deviceId -> hashing);
+    }
+
+    private static RoutingTable.NextHop nextHop(String ip, String mac, long port) {
+        return new RoutingTable.NextHop(IpAddress.valueOf(ip), MacAddress.valueOf(mac),
+                                        ConnectPoint.deviceConnectPoint(DEVICE + "/" + port));
+    }
+
+    private static class RecordingFlowObjectiveService extends FlowObjectiveServiceAdapter {
+        private final List<Objective> recorded = new ArrayList<>();
+        private NextObjective lastNext;
+        private int nextId = 1;
+
+        @Override
+        public void forward(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+            recorded.add(forwardingObjective);
+        }
+
+        @Override
+        public void next(DeviceId deviceId, NextObjective nextObjective) {
+            recorded.add(nextObjective);
+            if (nextObjective.op() == Objective.Operation.ADD) {
+                lastNext = nextObjective;
+            }
+        }
+
+        @Override
+        public int allocateNextId() {
+            return nextId++;
+        }
+
+        private List<NextObjective> nexts(Objective.Operation op) {
+            return recorded.stream()
+                .filter(objective -> objective instanceof NextObjective && objective.op() == op)
+                .map(objective -> (NextObjective) objective)
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static class SingleDeviceTopologyService extends TopologyServiceAdapter {
+        @Override
+        public TopologyGraph getGraph(Topology topology) {
+            return new DefaultTopologyGraph(ImmutableSet.<TopologyVertex>of(new DefaultTopologyVertex(DEVICE)),
+                                            ImmutableSet.<TopologyEdge>of());
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return ImmutableSet.of();
+        }
+    }
+}